@@ -0,0 +1,172 @@
+package smalltalk.compiler.bench;
+
+import org.antlr.symtab.Symbol;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.JsonObjectFile;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STSymbolTable;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** One benchmark per phase of {@link Compiler#compile}, plus JSON
+ *  serialization of the compiled classes, as a tree and streamed, over
+ *  the bundled image.st and generated images of 1k, 10k and 100k
+ *  methods; see {@link SyntheticImage}.
+ *
+ *  Each phase is measured on its own: the state for a benchmark is built
+ *  by running the earlier phases outside the measurement. Symbol
+ *  definition, resolution and code generation all mutate the tree, the
+ *  symbol table and the classes' literals and compiled blocks, so each
+ *  invocation gets a fresh tree brought up to the phase measured, as in
+ *  a real compile. Only serialization, which changes nothing, reuses one
+ *  compile per trial.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = {"-Xms2g", "-Xmx2g"})
+public class CompilerPhaseBenchmarks {
+	/** Discards what's written, so serializeStreaming measures only the JSON generation */
+	protected static final OutputStream NULL_OUTPUT = new OutputStream() {
+		@Override public void write(int b) { }
+		@Override public void write(byte[] b, int off, int len) { }
+	};
+
+	@State(Scope.Benchmark)
+	public static class Source {
+		@Param({"image.st", "1000", "10000", "100000"})
+		public String image;
+
+		public String text;
+
+		@Setup(Level.Trial)
+		public void load() throws IOException {
+			text = SyntheticImage.load(image);
+		}
+	}
+
+	/** A parsed tree, ready for symbol definition */
+	@State(Scope.Thread)
+	public static class Parsed {
+		public Compiler compiler;
+		public ParserRuleContext tree;
+
+		@Setup(Level.Invocation)
+		public void parse(Source source) {
+			compiler = new Compiler(new STSymbolTable());
+			tree = compiler.parseClasses(CharStreams.fromString(source.text));
+		}
+	}
+
+	/** A freshly parsed tree with its symbols defined, ready for resolution */
+	@State(Scope.Thread)
+	public static class Defined {
+		public Compiler compiler;
+		public ParserRuleContext tree;
+
+		@Setup(Level.Invocation)
+		public void define(Source source) {
+			compiler = new Compiler(new STSymbolTable());
+			tree = compiler.parseClasses(CharStreams.fromString(source.text));
+			compiler.defSymbols(tree);
+		}
+	}
+
+	/** A freshly parsed tree with its symbols defined and resolved, ready for code generation */
+	@State(Scope.Thread)
+	public static class Resolved {
+		public Compiler compiler;
+		public ParserRuleContext tree;
+
+		@Setup(Level.Invocation)
+		public void resolve(Source source) {
+			compiler = new Compiler(new STSymbolTable());
+			tree = compiler.parseClasses(CharStreams.fromString(source.text));
+			compiler.defSymbols(tree);
+			compiler.resolveSymbols(tree);
+		}
+	}
+
+	/** The compiled classes; serializing them doesn't change them, so one
+	 *  compile serves the whole trial.
+	 */
+	@State(Scope.Thread)
+	public static class Compiled {
+		public List<STClass> classes;
+
+		@Setup(Level.Trial)
+		public void compile(Source source) {
+			STSymbolTable symtab = new STSymbolTable();
+			Compiler compiler = new Compiler(symtab);
+			ParserRuleContext tree = compiler.parseClasses(CharStreams.fromString(source.text));
+			compiler.defSymbols(tree);
+			compiler.resolveSymbols(tree);
+			compiler.generateCode(tree);
+			if ( !compiler.errors.isEmpty() ) {
+				throw new IllegalStateException(source.image+": "+compiler.errors.get(0));
+			}
+			classes = new ArrayList<>();
+			for (Symbol s : symtab.GLOBALS.getSymbols()) {
+				if ( s instanceof STClass ) classes.add((STClass)s);
+			}
+		}
+	}
+
+	@Benchmark
+	public ParserRuleContext parseClasses(Source source) {
+		Compiler c = new Compiler(new STSymbolTable());
+		return c.parseClasses(CharStreams.fromString(source.text));
+	}
+
+	@Benchmark
+	public Compiler defSymbols(Parsed parsed) {
+		parsed.compiler.defSymbols(parsed.tree);
+		return parsed.compiler;
+	}
+
+	@Benchmark
+	public Compiler resolveSymbols(Defined defined) {
+		defined.compiler.resolveSymbols(defined.tree);
+		return defined.compiler;
+	}
+
+	@Benchmark
+	public Compiler generateCode(Resolved resolved) {
+		resolved.compiler.generateCode(resolved.tree);
+		return resolved.compiler;
+	}
+
+	@Benchmark
+	public void serialize(Compiled compiled, Blackhole bh) {
+		for (STClass cl : compiled.classes) {
+			bh.consume(cl.serialize());
+		}
+	}
+
+	@Benchmark
+	public void serializeStreaming(Compiled compiled) {
+		for (STClass cl : compiled.classes) {
+			JsonObjectFile.write(cl, NULL_OUTPUT, false);
+		}
+	}
+}
@@ -0,0 +1,39 @@
+package smalltalk.compiler.bench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/** Run the compiler benchmarks with the GC profiler so that every result
+ *  reports allocation rate (gc.alloc.rate.norm is bytes per operation)
+ *  next to throughput, and save the results as JSON for comparing runs:
+ *
+ *  <pre>
+ *  $ java -jar target/benchmarks.jar                      # everything
+ *  $ java -jar target/benchmarks.jar generateCode -p image=10000
+ *  </pre>
+ *
+ *  Standard JMH options may be given too; the GC profiler and the results
+ *  file always apply.
+ */
+public class RunBenchmarks {
+	public static final String RESULTS_FILE = "jmh-results.json";
+
+	public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+		CommandLineOptions cmdLine = new CommandLineOptions(args);
+		OptionsBuilder defaults = new OptionsBuilder();
+		if ( cmdLine.getIncludes().isEmpty() ) {
+			defaults.include(CompilerPhaseBenchmarks.class.getSimpleName());
+		}
+		defaults.addProfiler(GCProfiler.class)
+				.resultFormat(ResultFormatType.JSON)
+				.result(RESULTS_FILE);
+		Options options = defaults.parent(cmdLine).build();
+		new Runner(options).run();
+	}
+}
@@ -0,0 +1,84 @@
+package smalltalk.compiler.bench;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+/** Source text for the benchmarks: the bundled image.st or a generated
+ *  image with a given number of methods. Generated images are a
+ *  deterministic function of the method count so runs are comparable
+ *  across machines and commits.
+ */
+public class SyntheticImage {
+	public static final int METHODS_PER_CLASS = 100;
+	/** Classes inherit in chains of this many, each rooted at Object */
+	public static final int CHAIN_LENGTH = 10;
+
+	/** "image.st" for the bundled image, otherwise a method count like "10000" */
+	public static String load(String image) throws IOException {
+		if ( image.endsWith(".st") ) {
+			return readResource("/"+image);
+		}
+		return generate(Integer.parseInt(image));
+	}
+
+	/** Generate nmethods methods in classes of {@link #METHODS_PER_CLASS}.
+	 *  Each class inherits from the previous one, in chains of
+	 *  {@link #CHAIN_LENGTH}, so that field lookups walk a superclass chain. Methods mix arithmetic, keyword and unary
+	 *  sends, nested blocks, conditionals and string literals.
+	 */
+	public static String generate(int nmethods) {
+		StringBuilder buf = new StringBuilder(nmethods*160);
+		int nclasses = (nmethods+METHODS_PER_CLASS-1)/METHODS_PER_CLASS;
+		int m = 0;
+		for (int c = 0; c<nclasses; c++) {
+			buf.append("class C").append(c);
+			if ( c%CHAIN_LENGTH!=0 ) buf.append(" : C").append(c-1);
+			buf.append(" [\n");
+			buf.append("    |f").append(c).append(" g").append(c).append("|\n");
+			for (int i = 0; i<METHODS_PER_CLASS && m<nmethods; i++, m++) {
+				appendMethod(buf, c, m);
+			}
+			buf.append("]\n\n");
+		}
+		buf.append("(C0 new m0: 1) printString.\n");
+		return buf.toString();
+	}
+
+	protected static void appendMethod(StringBuilder buf, int c, int m) {
+		switch ( m % 4 ) {
+			case 0 :
+				buf.append("    m").append(m).append(": x [ |a b| a := x + ").append(m)
+				   .append(". b := f").append(c).append(" * a. ^a < b ifTrue: [a] ifFalse: [b] ]\n");
+				break;
+			case 1 :
+				buf.append("    m").append(m).append(": x [ |s| s := 0. 1 to: x do: [:i | s := s + (i * g")
+				   .append(c).append(")]. ^s ]\n");
+				break;
+			case 2 :
+				buf.append("    m").append(m).append(": x [ ^(x collect: [:e | e printString, 'm")
+				   .append(m).append("']) detect: [:e | e size > ").append(m % 10).append("] ]\n");
+				break;
+			default :
+				buf.append("    m").append(m).append(": x [ |i| i := x. [i > 0] whileTrue: [i := i - 1. self m")
+				   .append(m-1).append(": i]. ^super hash ]\n");
+				break;
+		}
+	}
+
+	protected static String readResource(String name) throws IOException {
+		try (InputStream in = SyntheticImage.class.getResourceAsStream(name)) {
+			if ( in==null ) {
+				throw new IOException("no resource "+name+" on the classpath");
+			}
+			ByteArrayOutputStream out = new ByteArrayOutputStream();
+			byte[] b = new byte[8192];
+			int n;
+			while ( (n = in.read(b))>=0 ) {
+				out.write(b, 0, n);
+			}
+			return new String(out.toByteArray(), StandardCharsets.UTF_8);
+		}
+	}
+}
@@ -51,7 +51,10 @@ stat:	lvalue ':=' messageExpression		# Assign
 	|	messageExpression					# SendMessage
 	;
 
-lvalue returns [VariableSymbol sym] // set sym to ID if assignment
+// For args/locals, depth is the number of contexts up from the one
+// referencing the variable and index is its slot there; for fields depth
+// is -1 and index is the absolute field offset. Set by ResolveSymbols.
+lvalue returns [VariableSymbol sym, int depth = -1, int index = -1] // set sym to ID if assignment
 	:	ID
 	;
 
@@ -101,7 +104,7 @@ primary
 	|	'(' messageExpression ')'
 	;
 
-id returns [Symbol sym] // could be class, field, arg ref etc...
+id returns [Symbol sym, int depth = -1, int index = -1] // could be class, field, arg ref etc...
 	:	ID
 	;
 
@@ -0,0 +1,254 @@
+package smalltalk.compiler;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.ParserRuleContext;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STSymbolTable;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.function.Function;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/** Compile many .st files in one JVM against a single shared
+ *  {@link STSymbolTable}, so that classes can refer to and inherit from
+ *  classes defined in other files.
+ *
+ *  Files are parsed concurrently, each worker thread reusing one lexer and
+ *  parser for all of the files it parses. Then
+ *  symbols for all files are defined, one file at a time in the order given,
+ *  which acts as a barrier: nothing is resolved until every class in every
+ *  file exists. Symbol resolution and code generation then run in parallel,
+ *  code generation one task per class. Object files are written by one I/O
+ *  worker per output directory.
+ */
+public class BatchCompiler {
+	public final STSymbolTable symtab = new STSymbolTable();
+
+	/** Creates a configured compiler for one file that uses the shared symtab */
+	protected final Function<STSymbolTable, Compiler> newCompiler;
+	protected final int nThreads;
+
+	/** One compiler per file, in the order the files were given */
+	protected final Map<Path, Compiler> compilers = new LinkedHashMap<>();
+	protected final Map<Path, SmalltalkParser.FileContext> trees = new LinkedHashMap<>();
+
+	public final List<String> errors = new ArrayList<>();
+
+	public BatchCompiler(int nThreads, Function<STSymbolTable, Compiler> newCompiler) {
+		this.nThreads = nThreads;
+		this.newCompiler = newCompiler;
+	}
+
+	/** Compile all files; return false upon errors, which are in {@link #errors}. */
+	public boolean compile(List<Path> files) {
+		ExecutorService pool = Executors.newFixedThreadPool(nThreads);
+		try {
+			parse(pool, files);
+			if ( !errors.isEmpty() ) return false;
+			defineSymbols();
+			if ( !errors.isEmpty() ) return false;
+			resolveSymbols(pool);
+			if ( !errors.isEmpty() ) return false;
+			generateCode(pool);
+			return errors.isEmpty();
+		}
+		finally {
+			pool.shutdown();
+		}
+	}
+
+	protected void parse(ExecutorService pool, List<Path> files) {
+		Map<Path, Future<SmalltalkParser.FileContext>> parsed = new LinkedHashMap<>();
+		for (Path f : files) {
+			Compiler c = newCompiler.apply(symtab);
+			c.reuseParsers = true;
+			compilers.put(f, c);
+			parsed.put(f, pool.submit(() -> {
+				String input = new String(Files.readAllBytes(f), StandardCharsets.UTF_8);
+				c.setFileName(f.getFileName().toString());
+				return (SmalltalkParser.FileContext)c.parseClasses(CharStreams.fromString(input));
+			}));
+		}
+		for (Map.Entry<Path, Future<SmalltalkParser.FileContext>> p : parsed.entrySet()) {
+			SmalltalkParser.FileContext tree = await(p.getValue());
+			if ( tree==null ) {
+				errors.add(p.getKey()+": syntax errors");
+			}
+			trees.put(p.getKey(), tree);
+		}
+	}
+
+	protected void defineSymbols() {
+		Path mainFile = null;
+		for (Map.Entry<Path, SmalltalkParser.FileContext> t : trees.entrySet()) {
+			if ( t.getValue().main().body().getChildCount()>0 ) {
+				if ( mainFile!=null ) {
+					errors.add(t.getKey()+": main program already defined in "+mainFile);
+					continue;
+				}
+				mainFile = t.getKey();
+			}
+			compilers.get(t.getKey()).defSymbols(t.getValue());
+		}
+		collectErrors();
+	}
+
+	protected void resolveSymbols(ExecutorService pool) {
+		List<Future<?>> resolved = new ArrayList<>();
+		for (Map.Entry<Path, SmalltalkParser.FileContext> t : trees.entrySet()) {
+			Compiler c = compilers.get(t.getKey());
+			resolved.add(pool.submit(() -> c.resolveSymbols(t.getValue())));
+		}
+		for (Future<?> f : resolved) await(f);
+		collectErrors();
+	}
+
+	protected void generateCode(ExecutorService pool) {
+		List<Future<?>> generated = new ArrayList<>();
+		for (Map.Entry<Path, SmalltalkParser.FileContext> t : trees.entrySet()) {
+			Compiler c = compilers.get(t.getKey());
+			for (ParserRuleContext unit : Compiler.getCompilationUnits(t.getValue()).values()) {
+				if ( c.sharedLiterals ) { // pool indexes mustn't depend on thread timing
+					c.generateCodeForUnit(unit);
+				}
+				else {
+					generated.add(pool.submit(() -> c.generateCodeForUnit(unit)));
+				}
+			}
+		}
+		for (Future<?> f : generated) await(f);
+		collectErrors();
+	}
+
+	/** Return the classes compiled from file, in definition order */
+	public List<STClass> getClasses(Path file) {
+		List<STClass> classes = new ArrayList<>();
+		for (String name : Compiler.getCompilationUnits(trees.get(file)).keySet()) {
+			classes.add((STClass)symtab.GLOBALS.resolve(name));
+		}
+		return classes;
+	}
+
+	/** Write the object files for all compiled classes. If outputDir is
+	 *  null, object files go into the directory of the .st file they came
+	 *  from. Each output directory gets its own writer thread.
+	 */
+	public void writeObjectFiles(String outputDir, boolean json) throws IOException {
+		writeObjectFiles(outputDir, json, false, null);
+	}
+
+	/** Write object files, with base64 bytecode in JSON if base64, reporting
+	 *  a serialize phase per class to listener if not null.
+	 */
+	public void writeObjectFiles(String outputDir, boolean json, boolean base64, CompilerListener listener)
+		throws IOException
+	{
+		Map<Path, List<STClass>> classesByDir = new LinkedHashMap<>();
+		for (Path f : trees.keySet()) {
+			Path dir = outputDir!=null ? Paths.get(outputDir) : f.toAbsolutePath().getParent();
+			classesByDir.computeIfAbsent(dir, d -> new ArrayList<>()).addAll(getClasses(f));
+		}
+		List<ExecutorService> writers = new ArrayList<>();
+		List<Future<?>> written = new ArrayList<>();
+		try {
+			for (Map.Entry<Path, List<STClass>> d : classesByDir.entrySet()) {
+				ExecutorService writer = Executors.newSingleThreadExecutor();
+				writers.add(writer);
+				String dir = d.getKey().toString();
+				boolean sharedLiterals = false;
+				for (STClass cl : d.getValue()) {
+					written.add(writer.submit(() -> {
+						try {
+							STC.writeObjectFile(dir, cl, json, base64, listener);
+						}
+						catch (IOException ioe) {
+							throw new UncheckedIOException(ioe);
+						}
+					}));
+					sharedLiterals |= cl.hasSharedLiterals();
+				}
+				if ( sharedLiterals ) { // each directory gets a copy of the pool
+					written.add(writer.submit(() -> {
+						try {
+							STC.writeLiteralPool(dir, symtab, json, listener);
+						}
+						catch (IOException ioe) {
+							throw new UncheckedIOException(ioe);
+						}
+					}));
+				}
+			}
+			for (Future<?> f : written) {
+				try {
+					await(f);
+				}
+				catch (UncheckedIOException uioe) {
+					throw uioe.getCause();
+				}
+			}
+		}
+		finally {
+			for (ExecutorService writer : writers) writer.shutdown();
+		}
+	}
+
+	/** Expand directories (recursively) into the .st files they hold, sorted by path */
+	public static List<Path> findSourceFiles(List<String> filesOrDirs) throws IOException {
+		List<Path> files = new ArrayList<>();
+		for (String name : filesOrDirs) {
+			Path p = Paths.get(name);
+			if ( Files.isDirectory(p) ) {
+				try (Stream<Path> s = Files.walk(p)) {
+					List<Path> found = s.filter(f -> f.toString().endsWith(".st") && Files.isRegularFile(f))
+					                    .sorted()
+					                    .collect(Collectors.toList());
+					files.addAll(found);
+				}
+			}
+			else {
+				files.add(p);
+			}
+		}
+		return Collections.unmodifiableList(files);
+	}
+
+	protected void collectErrors() {
+		for (Map.Entry<Path, Compiler> c : compilers.entrySet()) {
+			for (String msg : c.getValue().errors) {
+				errors.add(c.getKey()+": "+msg);
+			}
+			c.getValue().errors.clear();
+		}
+	}
+
+	protected static <T> T await(Future<T> f) {
+		try {
+			return f.get();
+		}
+		catch (InterruptedException ie) {
+			Thread.currentThread().interrupt();
+			throw new RuntimeException("interrupted", ie);
+		}
+		catch (ExecutionException ee) {
+			Throwable cause = ee.getCause();
+			if ( cause instanceof RuntimeException ) throw (RuntimeException)cause;
+			if ( cause instanceof IOException ) throw new UncheckedIOException((IOException)cause);
+			throw new RuntimeException(cause);
+		}
+	}
+}
@@ -0,0 +1,156 @@
+package smalltalk.compiler;
+
+import org.antlr.symtab.FieldSymbol;
+import org.antlr.symtab.MethodSymbol;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STCompiledBlock;
+import smalltalk.compiler.symbols.STMethod;
+import smalltalk.compiler.symbols.STMethodTable;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/** Writes the compact binary form of a compiled class, the alternative to
+ *  the JSON from {@link STClass#serialize()}. {@link BinaryObjectReader}
+ *  loads it back. All numbers are big endian, like operands in bytecode.
+ *
+ *  <pre>
+ *  file:    int magic ("STOB"), short version, short flags (SHARED_LITERALS | HAS_METHOD_TABLE)
+ *           str name, str superClassName ("" if none)
+ *           short nliterals, str literal*   or if SHARED_LITERALS, str literalPool
+ *           short nfields, str field*, short instanceSize (fields including inherited ones)
+ *           short nmethods, block*
+ *           short capacity, slot*   only if HAS_METHOD_TABLE; see STMethodTable
+ *  block:   str name, str qualifiedName
+ *           byte flags (IS_CLASS_METHOD | HAS_PRIMITIVE)
+ *           str primitiveName, only if HAS_PRIMITIVE
+ *           short nargs, short nlocals, short nCallSites, short maxStack
+ *           int nbytes, byte bytecode[nbytes]
+ *           short nblocks, block*   (nested blocks, in BLOCK operand order)
+ *  slot:    str selector ("" if free), then if not free str className, short index
+ *  str:     unsigned short nbytes, UTF-8 bytes
+ *  </pre>
+ */
+public class BinaryObjectFile {
+	public static final int MAGIC = 0x53544F42; // "STOB"
+	public static final int VERSION = 7;
+
+	/** File flag: literals are in the {@link LiteralPoolFile} named instead of listed */
+	public static final int SHARED_LITERALS = 1;
+	/** File flag: the class's {@link STMethodTable} follows its methods */
+	public static final int HAS_METHOD_TABLE = 2;
+
+	/** Largest count, length or index a short field can hold */
+	public static final int MAX_SHORT = 0xFFFF;
+
+	public static final int IS_CLASS_METHOD = 1;
+	public static final int HAS_PRIMITIVE   = 2;
+
+	public static void write(STClass cl, Path file) throws IOException {
+		try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+			write(cl, out);
+		}
+	}
+
+	public static void write(STClass cl, OutputStream out) throws IOException {
+		DataOutputStream data = new DataOutputStream(out);
+		data.writeInt(MAGIC);
+		data.writeShort(VERSION);
+		STMethodTable methodTable = STMethodTable.build(cl);
+		int flags = 0;
+		if ( cl.hasSharedLiterals() ) flags |= SHARED_LITERALS;
+		if ( methodTable!=null ) flags |= HAS_METHOD_TABLE;
+		data.writeShort(flags);
+		String name = cl.getName();
+		writeString(data, name, name, "name");
+		writeString(data, cl.getSuperClassName()!=null ? cl.getSuperClassName() : "", name, "superclass name");
+		if ( cl.hasSharedLiterals() ) {
+			writeString(data, LiteralPoolFile.FILE_NAME, name, "literal pool name");
+		}
+		else {
+			String[] literals = cl.stringTable.toArray();
+			writeShort(data, literals.length, name, "number of literals");
+			for (int i = 0; i<literals.length; i++) {
+				writeString(data, literals[i], name, "literal "+i);
+			}
+		}
+		writeShort(data, cl.getNumberOfDefinedFields(), name, "number of fields");
+		for (FieldSymbol f : cl.getDefinedFields()) {
+			writeString(data, f.getName(), name, "field name");
+		}
+		writeShort(data, cl.getInstanceSize(), name, "instance size");
+		writeShort(data, cl.getNumberOfDefinedMethods(), name, "number of methods");
+		for (MethodSymbol m : cl.getDefinedMethods()) {
+			writeBlock(data, ((STMethod) m).compiledBlock);
+		}
+		if ( methodTable!=null ) {
+			writeShort(data, methodTable.slots.length, name, "method table capacity");
+			for (STMethodTable.Entry e : methodTable.slots) {
+				if ( e==null ) {
+					writeString(data, "", name, "method table selector");
+				}
+				else {
+					writeString(data, e.selector, name, "method table selector");
+					writeString(data, e.className, name, "method table class name");
+					writeShort(data, e.index, name, "method table index of "+e.selector);
+				}
+			}
+		}
+		data.flush();
+	}
+
+	protected static void writeBlock(DataOutputStream data, STCompiledBlock blk) throws IOException {
+		String name = blk.qualifiedName;
+		writeString(data, blk.name, name, "name");
+		writeString(data, blk.qualifiedName, name, "qualified name");
+		int flags = 0;
+		if ( blk.isClassMethod ) flags |= IS_CLASS_METHOD;
+		if ( blk.primitiveName!=null ) flags |= HAS_PRIMITIVE;
+		data.writeByte(flags);
+		if ( blk.primitiveName!=null ) {
+			writeString(data, blk.primitiveName, name, "primitive name");
+		}
+		writeShort(data, blk.nargs, name, "number of args");
+		writeShort(data, blk.nlocals, name, "number of locals");
+		writeShort(data, blk.nCallSites, name, "number of call sites");
+		writeShort(data, blk.maxStack, name, "max stack");
+		if ( blk.bytecode!=null ) {
+			data.writeInt(blk.bytecode.length);
+			data.write(blk.bytecode);
+		}
+		else {
+			data.writeInt(0);
+		}
+		if ( blk.blocks!=null ) {
+			writeShort(data, blk.blocks.length, name, "number of blocks");
+			for (STCompiledBlock nested : blk.blocks) {
+				writeBlock(data, nested);
+			}
+		}
+		else {
+			data.writeShort(0);
+		}
+	}
+
+	/** Write s as a str; owner and what name it in the error if it's too long */
+	protected static void writeString(DataOutputStream data, String s, String owner, String what) throws IOException {
+		byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+		writeShort(data, bytes.length, owner, "length of "+what);
+		data.write(bytes);
+	}
+
+	/** Write v as an unsigned short or throw IOException naming owner and
+	 *  what v is, rather than write a truncated value that reads back wrong.
+	 */
+	protected static void writeShort(DataOutputStream data, int v, String owner, String what) throws IOException {
+		if ( v<0 || v>MAX_SHORT ) {
+			throw new IOException(owner+": "+what+" is "+v+"; an object file holds at most "+MAX_SHORT);
+		}
+		data.writeShort(v);
+	}
+}
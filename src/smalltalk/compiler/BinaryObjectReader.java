@@ -0,0 +1,258 @@
+package smalltalk.compiler;
+
+import org.stringtemplate.v4.ST;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STCompiledBlock;
+import smalltalk.compiler.symbols.STMethodTable;
+
+import java.io.IOException;
+import java.nio.Buffer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/** Loads the binary object files written by {@link BinaryObjectFile}.
+ *  {@link #map(Path)} memory-maps the file and the resulting block views
+ *  hand out slices of the mapping for their bytecode rather than copying it.
+ */
+public class BinaryObjectReader {
+	/** A loaded class; the binary equivalent of the JSON from STClass.serialize().
+	 *  {@link JsonObjectReader} loads JSON object files into these too.
+	 */
+	public static class ClassView {
+		public final String name;
+		/** null if no superclass */
+		public final String superClassName;
+		/** The class's own literals, or those of its literal pool */
+		public final String[] literals;
+		/** The {@link LiteralPoolFile} holding the literals; null if the class has its own */
+		public final String literalPool;
+		public final String[] fields;
+		/** Number of fields in an instance, inherited ones included; -1 if not recorded */
+		public final int instanceSize;
+		public final List<BlockView> methods;
+		/** null if the object file has none */
+		public final STMethodTable methodTable;
+
+		ClassView(String name, String superClassName, String[] literals, String literalPool,
+		          String[] fields, int instanceSize, List<BlockView> methods, STMethodTable methodTable)
+		{
+			this.name = name;
+			this.superClassName = superClassName;
+			this.literals = literals;
+			this.literalPool = literalPool;
+			this.fields = fields;
+			this.instanceSize = instanceSize;
+			this.methods = methods;
+			this.methodTable = methodTable;
+		}
+
+		/** If the literals are in a pool, load it from next to the object
+		 *  file; return a view with those literals.
+		 */
+		ClassView withLiteralPool(Path objectFile) throws IOException {
+			if ( literalPool==null ) return this;
+			String[] pool = LiteralPoolFile.read(objectFile.resolveSibling(literalPool));
+			return new ClassView(name, superClassName, pool, literalPool, fields, instanceSize, methods, methodTable);
+		}
+
+		/** The same text as {@link STClass#toTestString()} for the class this was written from */
+		public String toTestString() {
+			ST template = new ST(STClass.testStringTemplate);
+			template.impl.nativeGroup.setListener(STCompiledBlock.templateErrorListener);
+			template.add("name", name);
+			template.add("superClassName",
+			             superClassName!=null && !superClassName.equals("Object") ? superClassName : null);
+			template.add("fields", fields);
+			template.add("literals", literals);
+			List<String> methodStrings = new ArrayList<>();
+			for (BlockView m : methods) {
+				methodStrings.add(m.toTestString(literals));
+			}
+			template.add("methods", methodStrings);
+			return template.render();
+		}
+
+		@Override
+		public String toString() {
+			return "class "+name;
+		}
+	}
+
+	/** A loaded method or block; mirrors the fields of STCompiledBlock */
+	public static class BlockView {
+		public final String name;
+		public final String qualifiedName;
+		public final boolean isClassMethod;
+		/** null unless this is a primitive method */
+		public final String primitiveName;
+		public final int nargs;
+		public final int nlocals;
+		/** Inline cache size; see STCompiledBlock.nCallSites */
+		public final int nCallSites;
+		/** Operand stack size; see STCompiledBlock.maxStack */
+		public final int maxStack;
+		/** Nested blocks indexed by BLOCK operand; empty for [...] blocks */
+		public final BlockView[] blocks;
+		protected final ByteBuffer bytecode;
+
+		BlockView(String name, String qualifiedName, boolean isClassMethod,
+		          String primitiveName, int nargs, int nlocals, int nCallSites, int maxStack,
+		          ByteBuffer bytecode, BlockView[] blocks)
+		{
+			this.name = name;
+			this.qualifiedName = qualifiedName;
+			this.isClassMethod = isClassMethod;
+			this.primitiveName = primitiveName;
+			this.nargs = nargs;
+			this.nlocals = nlocals;
+			this.nCallSites = nCallSites;
+			this.maxStack = maxStack;
+			this.bytecode = bytecode;
+			this.blocks = blocks;
+		}
+
+		/** A read-only view of this block's bytecode within the loaded file */
+		public ByteBuffer bytecode() {
+			return bytecode.duplicate();
+		}
+
+		/** A copy of the bytecode, for tools that want a byte[] */
+		public byte[] getBytecode() {
+			byte[] b = new byte[bytecode.remaining()];
+			bytecode.duplicate().get(b);
+			return b;
+		}
+
+		/** The same text as {@link STCompiledBlock#toTestString()} */
+		public String toTestString(String[] literals) {
+			ST template = new ST(STCompiledBlock.testStringTemplate);
+			template.impl.nativeGroup.setListener(STCompiledBlock.templateErrorListener);
+			template.add("name", name);
+			template.add("isClassMethod", isClassMethod);
+			template.add("qualifiedName", qualifiedName);
+			template.add("nargs", nargs);
+			template.add("nlocals", nlocals);
+			template.add("assembly", Bytecode.disassemble(name, getBytecode(), literals, 0));
+			List<String> blockStrings = new ArrayList<>();
+			for (BlockView b : blocks) {
+				blockStrings.add(b.toTestString(literals));
+			}
+			template.add("blocks", blockStrings);
+			return template.render();
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	public static ClassView map(Path file) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			// the mapping stays valid after the channel is closed
+			return read(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size())).withLiteralPool(file);
+		}
+	}
+
+	/** Read a class from buf; literals are left empty if they're in a pool */
+	public static ClassView read(ByteBuffer buf) {
+		buf = buf.duplicate(); // don't disturb caller's position; big endian by default
+		int magic = buf.getInt();
+		if ( magic!=BinaryObjectFile.MAGIC ) {
+			throw new IllegalArgumentException("not a binary object file; bad magic number "+
+			                                   Integer.toHexString(magic));
+		}
+		int version = buf.getShort() & 0xFFFF;
+		if ( version!=BinaryObjectFile.VERSION ) {
+			throw new IllegalArgumentException("unsupported object file version "+version);
+		}
+		int flags = buf.getShort();
+		String name = readString(buf);
+		String superClassName = readString(buf);
+		if ( superClassName.isEmpty() ) superClassName = null;
+		String[] literals = new String[0];
+		String literalPool = null;
+		if ( (flags & BinaryObjectFile.SHARED_LITERALS)!=0 ) {
+			literalPool = readString(buf);
+		}
+		else {
+			literals = readStrings(buf);
+		}
+		String[] fields = readStrings(buf);
+		int instanceSize = buf.getShort() & 0xFFFF;
+		int nmethods = buf.getShort() & 0xFFFF;
+		List<BlockView> methods = new ArrayList<>(nmethods);
+		for (int i = 0; i<nmethods; i++) {
+			methods.add(readBlock(buf));
+		}
+		STMethodTable methodTable = null;
+		if ( (flags & BinaryObjectFile.HAS_METHOD_TABLE)!=0 ) {
+			STMethodTable.Entry[] slots = new STMethodTable.Entry[buf.getShort() & 0xFFFF];
+			for (int i = 0; i<slots.length; i++) {
+				String selector = readString(buf);
+				if ( !selector.isEmpty() ) {
+					slots[i] = new STMethodTable.Entry(selector, readString(buf), buf.getShort() & 0xFFFF);
+				}
+			}
+			methodTable = new STMethodTable(slots);
+		}
+		return new ClassView(name, superClassName, literals, literalPool, fields, instanceSize,
+		                     Collections.unmodifiableList(methods), methodTable);
+	}
+
+	protected static BlockView readBlock(ByteBuffer buf) {
+		String name = readString(buf);
+		String qualifiedName = readString(buf);
+		int flags = buf.get();
+		String primitiveName = null;
+		if ( (flags & BinaryObjectFile.HAS_PRIMITIVE)!=0 ) {
+			primitiveName = readString(buf);
+		}
+		int nargs = buf.getShort() & 0xFFFF;
+		int nlocals = buf.getShort() & 0xFFFF;
+		int nCallSites = buf.getShort() & 0xFFFF;
+		int maxStack = buf.getShort() & 0xFFFF;
+		int nbytes = buf.getInt();
+		ByteBuffer bytecode = slice(buf, nbytes);
+		int nblocks = buf.getShort() & 0xFFFF;
+		BlockView[] blocks = new BlockView[nblocks];
+		for (int i = 0; i<nblocks; i++) {
+			blocks[i] = readBlock(buf);
+		}
+		return new BlockView(name, qualifiedName,
+		                     (flags & BinaryObjectFile.IS_CLASS_METHOD)!=0,
+		                     primitiveName, nargs, nlocals, nCallSites, maxStack, bytecode, blocks);
+	}
+
+	/** Return a read-only view of the next n bytes and skip past them.
+	 *  Buffer's limit and position are called through Buffer: Java 9 added
+	 *  ByteBuffer overrides that a Java 8 runtime lacks.
+	 */
+	protected static ByteBuffer slice(ByteBuffer buf, int n) {
+		ByteBuffer s = buf.slice();
+		((Buffer)s).limit(n);
+		((Buffer)buf).position(buf.position()+n);
+		return s.asReadOnlyBuffer();
+	}
+
+	protected static String[] readStrings(ByteBuffer buf) {
+		String[] strings = new String[buf.getShort() & 0xFFFF];
+		for (int i = 0; i<strings.length; i++) {
+			strings[i] = readString(buf);
+		}
+		return strings;
+	}
+
+	protected static String readString(ByteBuffer buf) {
+		int n = buf.getShort() & 0xFFFF;
+		byte[] b = new byte[n];
+		buf.get(b);
+		return new String(b, StandardCharsets.UTF_8);
+	}
+}
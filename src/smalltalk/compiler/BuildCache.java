@@ -0,0 +1,165 @@
+package smalltalk.compiler;
+
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.tree.TerminalNode;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/** Fingerprints of the classes compiled from one .st file, kept next to
+ *  the .sto files so that STC -incremental can skip classes whose source
+ *  and superclass field layout haven't changed since the last build.
+ */
+public class BuildCache {
+	public static final String SUFFIX = ".stc-cache";
+
+	protected final Path file;
+	protected final Map<String,String> fingerprints = new LinkedHashMap<>();
+
+	/** The cache for stFileName's classes in outputDir */
+	public BuildCache(Path outputDir, String stFileName) {
+		this.file = outputDir.resolve(stFileName+SUFFIX);
+	}
+
+	public void load() throws IOException {
+		fingerprints.clear();
+		if ( !Files.exists(file) ) return;
+		for (String line : Files.readAllLines(file, StandardCharsets.UTF_8)) {
+			int sp = line.indexOf(' ');
+			if ( sp>0 ) {
+				fingerprints.put(line.substring(sp+1), line.substring(0, sp));
+			}
+		}
+	}
+
+	public void save() throws IOException {
+		StringBuilder buf = new StringBuilder();
+		for (Map.Entry<String,String> e : fingerprints.entrySet()) {
+			buf.append(e.getValue()).append(' ').append(e.getKey()).append('\n');
+		}
+		Files.write(file, buf.toString().getBytes(StandardCharsets.UTF_8));
+	}
+
+	public String get(String className) {
+		return fingerprints.get(className);
+	}
+
+	public void put(String className, String fingerprint) {
+		fingerprints.put(className, fingerprint);
+	}
+
+	/** Forget classes that are no longer defined in the source file */
+	public void retainAll(Collection<String> classNames) {
+		fingerprints.keySet().retainAll(classNames);
+	}
+
+	/** Compute a fingerprint for each class defined in tree (and MainClass
+	 *  if there's a main program). A fingerprint covers the options that
+	 *  affect generated code, the class's source text, and the name and
+	 *  fields of every superclass defined in the same file, as those
+	 *  determine field indexes. If all superclasses are in the file, the
+	 *  class gets an {@link smalltalk.compiler.symbols.STMethodTable} naming
+	 *  inherited methods by index, so the fingerprint also covers each
+	 *  superclass's selectors in definition order. With dbg instructions,
+	 *  code also depends on where the class starts in the file.
+	 */
+	public static Map<String,String> fingerprint(SmalltalkParser.FileContext tree,
+	                                             String options,
+	                                             boolean positionSensitive)
+	{
+		Map<String,SmalltalkParser.ClassDefContext> classDefs = new HashMap<>();
+		for (SmalltalkParser.ClassDefContext c : tree.classDef()) {
+			classDefs.put(c.ID(0).getText(), c);
+		}
+		Map<String,String> fingerprints = new LinkedHashMap<>();
+		for (Map.Entry<String,ParserRuleContext> unit : Compiler.getCompilationUnits(tree).entrySet()) {
+			ParserRuleContext ctx = unit.getValue();
+			StringBuilder buf = new StringBuilder();
+			buf.append(options).append('\n');
+			if ( positionSensitive ) {
+				buf.append(ctx.getStart().getLine()).append('\n');
+			}
+			buf.append(Compiler.getProgramSourceForSubtree(ctx)).append('\n');
+			Set<String> visited = new HashSet<>();
+			List<SmalltalkParser.ClassDefContext> superDefs = new ArrayList<>();
+			String superClassName = Compiler.getSuperClassName(ctx);
+			while ( superClassName!=null && visited.add(superClassName) ) {
+				buf.append("super ").append(superClassName);
+				SmalltalkParser.ClassDefContext superDef = classDefs.get(superClassName);
+				if ( superDef==null ) break;
+				if ( superDef.instanceVars()!=null ) {
+					buf.append(' ').append(Compiler.getProgramSourceForSubtree(superDef.instanceVars()));
+				}
+				buf.append('\n');
+				superDefs.add(superDef);
+				superClassName = Compiler.getSuperClassName(superDef);
+			}
+			if ( superClassName==null ) { // whole chain is here so there's a method table
+				for (SmalltalkParser.ClassDefContext superDef : superDefs) {
+					buf.append("methods");
+					for (String selector : getSelectors(superDef)) {
+						buf.append(' ').append(selector);
+					}
+					buf.append('\n');
+				}
+			}
+			fingerprints.put(unit.getKey(), sha256(buf.toString()));
+		}
+		return fingerprints;
+	}
+
+	/** The selectors of c's methods in the order DefineSymbols defines
+	 *  them, class methods first, which is the order of method indexes.
+	 */
+	public static List<String> getSelectors(SmalltalkParser.ClassDefContext c) {
+		List<String> selectors = new ArrayList<>();
+		for (SmalltalkParser.ClassMethodContext m : c.classMethod()) {
+			selectors.add(getSelector(m.method()));
+		}
+		for (SmalltalkParser.MethodContext m : c.method()) {
+			selectors.add(getSelector(m));
+		}
+		return selectors;
+	}
+
+	public static String getSelector(SmalltalkParser.MethodContext m) {
+		if ( m instanceof SmalltalkParser.NamedMethodContext ) {
+			return ((SmalltalkParser.NamedMethodContext)m).ID().getText();
+		}
+		if ( m instanceof SmalltalkParser.OperatorMethodContext ) {
+			return ((SmalltalkParser.OperatorMethodContext)m).bop().getText();
+		}
+		StringBuilder buf = new StringBuilder();
+		for (TerminalNode keyword : ((SmalltalkParser.KeywordMethodContext)m).KEYWORD()) {
+			buf.append(keyword.getText());
+		}
+		return buf.toString();
+	}
+
+	public static String sha256(String s) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("SHA-256");
+			byte[] digest = md.digest(s.getBytes(StandardCharsets.UTF_8));
+			StringBuilder buf = new StringBuilder();
+			for (byte b : digest) {
+				buf.append(String.format("%02x", b & 0xFF));
+			}
+			return buf.toString();
+		}
+		catch (NoSuchAlgorithmException nsae) {
+			throw new IllegalStateException("no SHA-256 available", nsae);
+		}
+	}
+}
@@ -1,10 +1,9 @@
 package smalltalk.compiler;
 
-import java.util.ArrayList;
-import java.util.List;
-
 public class Bytecode {
 	public static final int MAX_OPNDS = 3; // Or single opnd indicating variable number
+	/** Largest value of a SHORT or LITERAL operand, which are unsigned */
+	public static final int MAX_SHORT_OPERAND = 0xFFFF;
 
 	public static int combineLineCharPos(int line, int charPos) {
 		return line << 8 | charPos & 0xFF;
@@ -19,7 +18,7 @@ public class Bytecode {
 	}
 
 	public enum OperandType {
-		NONE(0), BYTE(1), CHAR(2), ADDR(4), SHORT(2), LITERAL(2), INT(4), FLOAT(4),
+		NONE(0), BYTE(1), CHAR(4), ADDR(4), SHORT(2), LITERAL(2), INT(4), FLOAT(4), LONG(8),
 		DBG_LOCATION(4) // upper 24 bits are line number; lowest eight bits are the character position within the line
 		;
 		public final int sizeInBytes;
@@ -57,6 +56,12 @@ public class Bytecode {
 	public static final short TRUE					= 3;
 	public static final short FALSE					= 4;
 
+	// superinstructions, emitted only if Compiler.superInstructions
+	public static final short PUSH_LOCAL0			= 5; // push_local 0, i
+	public static final short STORE_LOCAL0			= 6; // store_local 0, i
+	public static final short PUSH_SELF_FIELD		= 7; // self; push_field i
+	public static final short RETURN_SELF			= 8; // self; return
+
 	public static final short PUSH_CHAR				= 10;
 	public static final short PUSH_INT				= 11;
 	public static final short PUSH_FLOAT			= 12;
@@ -69,6 +74,10 @@ public class Bytecode {
 	public static final short STORE_LOCAL 			= 19;
 	public static final short POP					= 20;
 
+	public static final short SEND0					= 21; // send 0, sel
+	public static final short SEND1					= 22; // send 1, sel
+	public static final short SEND2					= 23; // send 2, sel
+
 	public static final short SEND					= 25;
 	public static final short SEND_SUPER			= 26;
 	public static final short BLOCK					= 27;
@@ -77,6 +86,19 @@ public class Bytecode {
 
 	public static final short DBG					= 30;
 
+	// branches to an absolute address within the block; BRF and BRT pop the condition
+	public static final short BR					= 31;
+	public static final short BRF					= 32; // branch if false
+	public static final short BRT					= 33; // branch if true
+
+	// sends with a call-site index into the block's inline cache, emitted only if Compiler.inlineCaches
+	public static final short SEND_IC				= 34; // send nargs, sel, site
+	public static final short SEND_SUPER_IC			= 35; // send_super nargs, sel, site
+
+	// integer literals that don't fit in push_int's 32 bits
+	public static final short PUSH_LONG				= 36; // 64-bit value inline
+	public static final short PUSH_BIGINT			= 37; // decimal digits in the literal table
+
 	/** Used for disassembly; describes instruction set */
 	public static final Instruction[] instructions = new Instruction[] {
 		null, // <INVALID>
@@ -85,9 +107,13 @@ public class Bytecode {
 		new Instruction("true"),
 		new Instruction("false"),
 
-		null, null, null, null, null, 		// leave room for gap in ints
+		new Instruction("push_local0", OperandType.SHORT), // index in current scope
+		new Instruction("store_local0", OperandType.SHORT),
+		new Instruction("push_self_field", OperandType.SHORT), // pushes self then field
+		new Instruction("return_self"),
+		null, 								// leave room for gap in ints
 
-		new Instruction("push_char", OperandType.CHAR),
+		new Instruction("push_char", OperandType.CHAR), // Unicode code point
 		new Instruction("push_int", OperandType.INT),
 		new Instruction("push_float", OperandType.FLOAT),
 		new Instruction("push_field", OperandType.SHORT),
@@ -99,7 +125,10 @@ public class Bytecode {
 		new Instruction("store_local", OperandType.SHORT, OperandType.SHORT),
 		new Instruction("pop"),
 
-		null, null, null, null, 		// leave room for gap in ints
+		new Instruction("send0", OperandType.LITERAL),
+		new Instruction("send1", OperandType.LITERAL),
+		new Instruction("send2", OperandType.LITERAL),
+		null, 						// leave room for gap in ints
 
 		new Instruction("send", OperandType.SHORT, OperandType.LITERAL),
 		new Instruction("send_super", OperandType.SHORT, OperandType.LITERAL),
@@ -108,13 +137,126 @@ public class Bytecode {
 		new Instruction("return"),
 
 		new Instruction("dbg", OperandType.LITERAL, OperandType.DBG_LOCATION), // filename, line:charpos in file
+
+		new Instruction("br", OperandType.ADDR),
+		new Instruction("brf", OperandType.ADDR),
+		new Instruction("brt", OperandType.ADDR),
+
+		new Instruction("send_ic", OperandType.SHORT, OperandType.LITERAL, OperandType.SHORT),
+		new Instruction("send_super_ic", OperandType.SHORT, OperandType.LITERAL, OperandType.SHORT),
+
+		new Instruction("push_long", OperandType.LONG),
+		new Instruction("push_bigint", OperandType.LITERAL),
 	};
 
+	/** Bytes taken by each opcode's instruction and operands; 0 for unused opcodes */
+	public static final byte[] instructionLength = new byte[instructions.length];
+	static {
+		for (int opcode = 0; opcode<instructions.length; opcode++) {
+			Instruction I = instructions[opcode];
+			if ( I==null ) continue;
+			int size = 1;
+			for (int i=0; i<I.n; i++) {
+				size += I.type[i].sizeInBytes;
+			}
+			instructionLength[opcode] = (byte)size;
+		}
+	}
+
+	/** Return the number of bytes taken by an instruction and its operands */
+	public static int instructionSize(int opcode) {
+		return instructionLength[opcode];
+	}
+
+	/** Decodes bytecode an instruction at a time without allocating; for
+	 *  the disassembler and for anything else walking bytecode, such as a
+	 *  VM or a verifier. Reuse one cursor via {@link #reset}:
+	 *
+	 *  <pre>
+	 *  Bytecode.Cursor c = new Bytecode.Cursor().reset(code, 0);
+	 *  while ( c.next() ) { ... c.opcode, c.operands[0..c.nOperands-1] ... }
+	 *  </pre>
+	 *
+	 *  Operands are decoded to ints: SHORT and LITERAL operands are
+	 *  unsigned, BYTE is signed, CHAR is a code point and a FLOAT operand
+	 *  holds the float's bits.
+	 *  A LONG operand doesn't fit; read it with {@link #longOperand}.
+	 */
+	public static final class Cursor {
+		public byte[] code;
+		/** Address of the current instruction */
+		public int ip;
+		/** Address of the next instruction */
+		public int nextIP;
+		public int opcode;
+		public Instruction instruction;
+		public int nOperands;
+		public final int[] operands = new int[MAX_OPNDS];
+		/** Address of each operand, for patching or wider reads */
+		public final int[] operandAddresses = new int[MAX_OPNDS];
+		protected String blkName;
+
+		/** Decode code from address start; blkName is for error messages only */
+		public Cursor reset(byte[] code, int start, String blkName) {
+			this.code = code;
+			this.nextIP = start;
+			this.blkName = blkName;
+			return this;
+		}
+
+		public Cursor reset(byte[] code, int start) {
+			return reset(code, start, null);
+		}
+
+		/** The value of operand i, which is a LONG */
+		public long longOperand(int i) {
+			return getLong(code, operandAddresses[i]);
+		}
+
+		/** Move to the next instruction; false at the end of the code */
+		public boolean next() {
+			if ( code==null || nextIP>=code.length ) return false;
+			ip = nextIP;
+			opcode = code[ip] & 0xFF;
+			instruction = opcode<instructions.length ? instructions[opcode] : null;
+			if ( instruction==null ) {
+				throw new IllegalArgumentException("no such instruction "+opcode+
+					" at address "+ip+" of "+ blkName+"\n");
+			}
+			if ( ip+instructionLength[opcode]>code.length ) {
+				throw new IllegalArgumentException("truncated instruction "+instruction.name+
+					" at address "+ip+" of "+ blkName+"\n");
+			}
+			nOperands = instruction.n;
+			int a = ip+1;
+			for (int i=0; i<nOperands; i++) {
+				operandAddresses[i] = a;
+				switch ( instruction.type[i].sizeInBytes ) {
+					case 1 :
+						operands[i] = code[a];
+						break;
+					case 2 :
+						operands[i] = getShort(code, a);
+						break;
+					case 4 :
+						operands[i] = getInt(code, a);
+						break;
+					default : // LONG; see longOperand()
+						operands[i] = 0;
+						break;
+				}
+				a += instruction.type[i].sizeInBytes;
+			}
+			nextIP = ip + instructionLength[opcode];
+			return true;
+		}
+	}
+
 	public static String disassemble(String blkName, byte[] bytecode, String[] literals, int start) {
 		StringBuilder buf = new StringBuilder();
-		int i=start;
-		while (bytecode!=null && i<bytecode.length) {
-			i = disassembleInstruction(buf, blkName, bytecode, literals, i);
+		Cursor cursor = new Cursor().reset(bytecode, start, blkName);
+		while ( cursor.next() ) {
+			disassembleInstruction(buf, cursor, literals);
 			buf.append('\n');
 		}
 		return buf.toString();
@@ -127,73 +269,64 @@ public class Bytecode {
 	}
 
 	public static int disassembleInstruction(StringBuilder buf, String blkName, byte[] bytecode, String[] literals, int ip) {
-		int opcode = bytecode[ip];
 		if ( ip>=bytecode.length ) {
 			throw new IllegalArgumentException("ip out of range: "+ip);
 		}
-		Bytecode.Instruction I =
-			Bytecode.instructions[opcode];
-		if ( I==null ) {
-			throw new IllegalArgumentException("no such instruction "+opcode+
-				" at address "+ip+" of "+ blkName+"\n");
-		}
-		String instrName = I.name;
-		if ( instrName.equals("dbg") ) {
-			buf.append(String.format("%04d:  %s ", ip, instrName));
+		Cursor cursor = new Cursor().reset(bytecode, ip, blkName);
+		cursor.next();
+		disassembleInstruction(buf, cursor, literals);
+		return cursor.nextIP;
+	}
+
+	/** Append the instruction the cursor is on to buf */
+	public static void disassembleInstruction(StringBuilder buf, Cursor cursor, String[] literals) {
+		appendAddress(buf, cursor.ip);
+		buf.append(":  ");
+		String instrName = cursor.instruction.name;
+		buf.append(instrName);
+		if ( cursor.opcode==DBG ) {
+			buf.append(' ');
 		}
 		else {
-			buf.append(String.format("%04d:  %-15s", ip, instrName));
+			for (int i = instrName.length(); i<15; i++) buf.append(' ');
+			if ( instrName.length()>=15 ) buf.append(' '); // keep long names apart from operands
 		}
-		ip++;
-		if ( I.n==0 ) {
+		if ( cursor.nOperands==0 ) {
 			buf.append("  ");
-			return ip;
+			return;
 		}
-		List<String> operands = new ArrayList<>();
-		for (int i=0; i<I.n; i++) {
-			switch ( I.type[i] ) {
+		OperandType[] types = cursor.instruction.type;
+		for (int i=0; i<cursor.nOperands; i++) {
+			if ( i>0 ) buf.append(", ");
+			int opnd = cursor.operands[i];
+			switch ( types[i] ) {
 				case NONE:
 					break;
-				case BYTE:
-					operands.add(String.valueOf(bytecode[ip]));
-					break;
-				case CHAR :
-					operands.add(String.valueOf(getShort(bytecode, ip)));
-					break;
-				case SHORT :
-					operands.add(String.valueOf(getShort(bytecode, ip)));
-					break;
 				case LITERAL:
-					int lit = getShort(bytecode, ip);
-//					operands.add(String.format("'%s'(@%d)", literals[lit], lit));
-					operands.add(String.format("'%s'", literals[lit]));
-					break;
-				case ADDR :
-				case INT :
-					operands.add(String.valueOf(getInt(bytecode, ip)));
+					buf.append('\'').append(literals[opnd]).append('\'');
 					break;
 				case FLOAT :
-					float f = Float.intBitsToFloat(getInt(bytecode, ip));
-					operands.add(String.valueOf(f));
+					buf.append(Float.intBitsToFloat(opnd));
 					break;
 				case DBG_LOCATION :
-					int lineAndPos = getInt(bytecode, ip);
-					int charPos = charPosFromCombined(lineAndPos);
-					int line = lineFromCombined(lineAndPos);
-					operands.add(line+":"+charPos);
+					buf.append(lineFromCombined(opnd)).append(':').append(charPosFromCombined(opnd));
 					break;
-				default :
-					System.err.println("invalid opnd type: "+I.type[i]);
+				case LONG :
+					buf.append(cursor.longOperand(i));
+					break;
+				default : // BYTE, CHAR, SHORT, ADDR, INT
+					buf.append(opnd);
 					break;
 			}
-			ip += I.type[i].sizeInBytes;
-		}
-		for (int i = 0; i < operands.size(); i++) {
-			String s = operands.get(i);
-			if ( i>0 ) buf.append(", ");
-			buf.append( s );
 		}
-		return ip;
+	}
+
+	/** Append ip as String.format("%04d") would */
+	protected static void appendAddress(StringBuilder buf, int ip) {
+		if ( ip<1000 ) buf.append('0');
+		if ( ip<100 ) buf.append('0');
+		if ( ip<10 ) buf.append('0');
+		buf.append(ip);
 	}
 
 	public static int getInt(byte[] memory, int index) {
@@ -204,6 +337,10 @@ public class Bytecode {
 		return b1<<(8*3) | b2<<(8*2) | b3<<(8*1) | b4;
 	}
 
+	public static long getLong(byte[] memory, int index) {
+		return (long)getInt(memory, index)<<32 | getInt(memory, index+4) & 0xFFFFFFFFL;
+	}
+
 	public static int getShort(byte[] memory, int index) {
 		int b1 = memory[index++]&0xFF; // mask off sign-extended bits
 		int b2 = memory[index]&0xFF;
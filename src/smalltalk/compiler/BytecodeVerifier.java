@@ -0,0 +1,192 @@
+package smalltalk.compiler;
+
+import smalltalk.compiler.symbols.STCompiledBlock;
+
+import java.util.Arrays;
+
+/** Checks that the bytecode of a method or block is well formed and
+ *  computes the deepest its operand stack gets, so the VM can allocate
+ *  each context's stack once at its exact size.
+ *
+ *  Every path from address 0 is followed. The code is rejected if an
+ *  instruction is unknown or truncated, a branch lands outside the code or
+ *  inside an instruction, the stack underflows, two paths reach an
+ *  instruction with different stack depths, execution can fall off the
+ *  end of the code, or an operand is out of range: a literal index past
+ *  the class's literals, a local of the block's own context past its
+ *  args and locals, or a nested block index past the method's blocks.
+ */
+public class BytecodeVerifier {
+	/** Verify compiled's bytecode and return its maximum stack depth;
+	 *  0 if it has no bytecode, as for primitives.
+	 */
+	public static int verify(STCompiledBlock compiled) {
+		return verify(compiled.bytecode,
+		              compiled.nargs + compiled.nlocals,
+		              compiled.enclosingClass.stringTable.size(),
+		              compiled.blocks!=null ? compiled.blocks.length : -1,
+		              compiled.qualifiedName);
+	}
+
+	/** Verify code and return its maximum stack depth. nslots is the
+	 *  number of args and locals in the block's context; nblocks is the
+	 *  number of nested blocks BLOCK may refer to or -1 if unknown, as
+	 *  for [...] blocks, whose BLOCK operands index their method's blocks.
+	 *  Throws IllegalArgumentException if the code is malformed.
+	 */
+	public static int verify(byte[] code, int nslots, int nliterals, int nblocks, String blkName) {
+		if ( code==null || code.length==0 ) return 0;
+		// depth of the stack on entry to each instruction; -1 if not reached yet
+		int[] depthAt = new int[code.length];
+		Arrays.fill(depthAt, -1);
+		boolean[] isInstruction = new boolean[code.length];
+		Bytecode.Cursor cursor = new Bytecode.Cursor().reset(code, 0, blkName);
+		while ( cursor.next() ) {
+			isInstruction[cursor.ip] = true;
+		}
+
+		int[] work = new int[code.length];
+		int nwork = 0;
+		depthAt[0] = 0;
+		work[nwork++] = 0;
+		int maxStack = 0;
+		while ( nwork>0 ) {
+			int ip = work[--nwork];
+			cursor.reset(code, ip, blkName).next();
+			checkOperands(cursor, nslots, nliterals, nblocks, blkName);
+			int depth = depthAt[ip];
+			int pops = pops(cursor);
+			if ( depth<pops ) {
+				throw error(blkName, ip, "stack underflow");
+			}
+			depth = depth - pops + pushes(cursor);
+			maxStack = Math.max(maxStack, depth);
+
+			int target = -1;
+			if ( isBranch(cursor.opcode) ) {
+				target = cursor.operands[0];
+				if ( target<0 || target>=code.length || !isInstruction[target] ) {
+					throw error(blkName, ip, "branch to bad address "+target);
+				}
+			}
+			int next = fallsThrough(cursor.opcode) ? cursor.nextIP : -1;
+			if ( next==code.length ) {
+				throw error(blkName, ip, "falls off the end of the code");
+			}
+			nwork = flowTo(next, depth, ip, depthAt, work, nwork, blkName);
+			nwork = flowTo(target, depth, ip, depthAt, work, nwork, blkName);
+		}
+		return maxStack;
+	}
+
+	/** Record that control reaches succ from ip with the stack depth given;
+	 *  add succ to the work list the first time. Return the new work list size.
+	 */
+	protected static int flowTo(int succ, int depth, int ip, int[] depthAt, int[] work, int nwork, String blkName) {
+		if ( succ<0 ) return nwork;
+		if ( depthAt[succ]<0 ) {
+			depthAt[succ] = depth;
+			work[nwork++] = succ;
+		}
+		else if ( depthAt[succ]!=depth ) {
+			throw error(blkName, succ, "stack depth "+depth+" from "+ip+
+			                           " doesn't match "+depthAt[succ]);
+		}
+		return nwork;
+	}
+
+	/** Number of operand stack entries the instruction at cursor pops */
+	public static int pops(Bytecode.Cursor cursor) {
+		switch ( cursor.opcode ) {
+			case Bytecode.POP :
+			case Bytecode.STORE_FIELD :
+			case Bytecode.STORE_LOCAL :
+			case Bytecode.STORE_LOCAL0 :
+			case Bytecode.BRF :
+			case Bytecode.BRT :
+			case Bytecode.RETURN :
+			case Bytecode.BLOCK_RETURN :
+			case Bytecode.SEND0 :
+				return 1;
+			case Bytecode.SEND1 :
+				return 2;
+			case Bytecode.SEND2 :
+				return 3;
+			case Bytecode.SEND :
+			case Bytecode.SEND_SUPER :
+			case Bytecode.SEND_IC :
+			case Bytecode.SEND_SUPER_IC :
+				return cursor.operands[0] + 1; // args and receiver
+			case Bytecode.PUSH_ARRAY :
+				return cursor.operands[0];
+			default :
+				return 0;
+		}
+	}
+
+	/** Number of operand stack entries the instruction at cursor pushes */
+	public static int pushes(Bytecode.Cursor cursor) {
+		switch ( cursor.opcode ) {
+			case Bytecode.POP :
+			case Bytecode.BR :
+			case Bytecode.BRF :
+			case Bytecode.BRT :
+			case Bytecode.RETURN :
+			case Bytecode.BLOCK_RETURN :
+			case Bytecode.RETURN_SELF :
+			case Bytecode.DBG :
+				return 0;
+			case Bytecode.PUSH_SELF_FIELD :
+				return 2; // self and then the field
+			default : // pushes, stores (which leave the value), sends, array and block
+				return 1;
+		}
+	}
+
+	public static boolean isBranch(int opcode) {
+		return opcode==Bytecode.BR || opcode==Bytecode.BRF || opcode==Bytecode.BRT;
+	}
+
+	public static boolean fallsThrough(int opcode) {
+		switch ( opcode ) {
+			case Bytecode.BR :
+			case Bytecode.RETURN :
+			case Bytecode.BLOCK_RETURN :
+			case Bytecode.RETURN_SELF :
+				return false;
+			default :
+				return true;
+		}
+	}
+
+	protected static void checkOperands(Bytecode.Cursor cursor, int nslots, int nliterals, int nblocks, String blkName) {
+		for (int i = 0; i<cursor.nOperands; i++) {
+			if ( cursor.instruction.type[i]==Bytecode.OperandType.LITERAL && cursor.operands[i]>=nliterals ) {
+				throw error(blkName, cursor.ip, "literal "+cursor.operands[i]+" out of range");
+			}
+		}
+		int local = -1;
+		switch ( cursor.opcode ) {
+			case Bytecode.PUSH_LOCAL0 :
+			case Bytecode.STORE_LOCAL0 :
+				local = cursor.operands[0];
+				break;
+			case Bytecode.PUSH_LOCAL :
+			case Bytecode.STORE_LOCAL :
+				if ( cursor.operands[0]==0 ) local = cursor.operands[1];
+				break;
+			case Bytecode.BLOCK :
+				if ( nblocks>=0 && cursor.operands[0]>=nblocks ) {
+					throw error(blkName, cursor.ip, "block "+cursor.operands[0]+" out of range");
+				}
+				break;
+		}
+		if ( local>=nslots ) {
+			throw error(blkName, cursor.ip, "local "+local+" out of range");
+		}
+	}
+
+	protected static IllegalArgumentException error(String blkName, int ip, String msg) {
+		return new IllegalArgumentException(blkName+" at "+ip+": "+msg);
+	}
+}
@@ -2,11 +2,28 @@ package smalltalk.compiler;
 
 import smalltalk.compiler.misc.ByteList;
 
+/** A growable bytecode buffer. The code generator keeps one of these per
+ *  compiled block and appends instructions to it with the typed emit
+ *  methods, which write operands in place (high byte first) rather than
+ *  allocating a little Code object per operand and joining them.
+ */
 public class Code extends ByteList { // just an alias
 	public static final Code None = new Code();
 
+	/** Address of the last instruction emitted with emitOp, or -1 if unknown
+	 *  or if a branch may target the current address; see {@link #mark()}.
+	 */
+	protected int lastOpAddress = -1;
+
+	public Code() {
+	}
+
+	public Code(int initialCapacity) {
+		super(initialCapacity);
+	}
+
 	public static Code of(short... args) {
-		Code bytes = new Code();
+		Code bytes = new Code(Math.max(args.length, 1));
 		for (short b : args) bytes.add(b);
 		return bytes;
 	}
@@ -27,9 +44,85 @@ public class Code extends ByteList { // just an alias
 		if ( bytes == None ) {
 			return this;
 		}
-		for (int i=0; i<bytes.n; i++) {
-			add(bytes.elements[i]);
+		addAll(bytes);
+		lastOpAddress = -1;
+		return this;
+	}
+
+	public Code emitOp(short opcode) {
+		lastOpAddress = n;
+		add(opcode);
+		return this;
+	}
+
+	/** The opcode of the last instruction emitted, if it can still be fused
+	 *  with the next one; -1 otherwise.
+	 */
+	public int lastOp() {
+		return lastOpAddress>=0 ? elements[lastOpAddress] & 0xFF : -1;
+	}
+
+	/** Remove the last instruction emitted, so that a superinstruction can replace it */
+	public void removeLastOp() {
+		if ( lastOpAddress<0 ) {
+			throw new IllegalStateException("no instruction to remove");
+		}
+		n = lastOpAddress;
+		lastOpAddress = -1;
+	}
+
+	/** Note that the current address is a label (branch target), which
+	 *  must not be fused away; return the address.
+	 */
+	public int mark() {
+		lastOpAddress = -1;
+		return n;
+	}
+
+	/** Emit v as a 16-bit SHORT or LITERAL operand; throw IllegalArgumentException
+	 *  rather than silently keep only its low 16 bits if it doesn't fit.
+	 */
+	public Code emitShort(int v) {
+		if ( v<0 || v>Bytecode.MAX_SHORT_OPERAND ) {
+			throw new IllegalArgumentException("operand "+v+" doesn't fit in 16 bits");
 		}
+		ensureCapacity(n + 2);
+		elements[n++] = (byte) ((v >> (8*1)) & 0xFF);
+		elements[n++] = (byte) ((v >> (8*0)) & 0xFF);
+		return this;
+	}
+
+	public Code emitLiteral(int index) {
+		return emitShort(index);
+	}
+
+	public Code emitInt(int v) {
+		ensureCapacity(n + 4);
+		elements[n++] = (byte) ((v >> (8*3)) & 0xFF);
+		elements[n++] = (byte) ((v >> (8*2)) & 0xFF);
+		elements[n++] = (byte) ((v >> (8*1)) & 0xFF);
+		elements[n++] = (byte) ((v >> (8*0)) & 0xFF);
 		return this;
 	}
+
+	public Code emitAddr(int address) {
+		return emitInt(address);
+	}
+
+	/** Fill in the ADDR operand at operandAddress, emitted earlier as a placeholder */
+	public void patchAddr(int operandAddress, int target) {
+		int save = n;
+		n = operandAddress;
+		emitInt(target);
+		n = save;
+	}
+
+	public Code emitLong(long v) {
+		emitInt((int)(v >> 32));
+		return emitInt((int)v);
+	}
+
+	public Code emitFloat(float v) {
+		return emitInt(Float.floatToIntBits(v));
+	}
 }
@@ -8,6 +8,9 @@ import org.antlr.v4.runtime.Token;
 import org.antlr.v4.runtime.tree.TerminalNode;
 import smalltalk.compiler.symbols.*;
 
+import java.math.BigInteger;
+import java.util.ArrayDeque;
+import java.util.Deque;
 import java.util.List;
 
 /**
@@ -19,13 +22,34 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
     public STClass currentClassScope;
     public Scope currentScope;
 
+    /**
+     * The bytecode buffer for the method or block being compiled. Visit
+     * methods append instructions to it and return it, so joining results
+     * as they bubble up the visitor call stack never copies bytes. Each
+     * method/block gets a fresh buffer; see {@link #beginBlock()}.
+     */
+    protected Code code = Code.None;
+
+    /**
+     * Call sites allocated so far in the method or block being compiled,
+     * with those of enclosing blocks saved by {@link #beginBlock()}.
+     */
+    protected int nCallSites;
+    protected final Deque<Integer> enclosingCallSites = new ArrayDeque<>();
+
     /**
      * With which compiler are we generating code?
      */
     public final Compiler compiler;
 
+    /**
+     * Evaluates number literal arithmetic if the compiler's foldConstants flag is set.
+     */
+    protected final ConstantFolder constantFolder;
+
     public CodeGenerator(Compiler compiler) {
         this.compiler = compiler;
+        this.constantFolder = new ConstantFolder(compiler);
     }
 
     /**
@@ -35,7 +59,7 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
     @Override
     protected Code aggregateResult(Code aggregate, Code nextResult) {
         if (aggregate != defaultResult()) {
-            if (nextResult != defaultResult()) {
+            if (nextResult != defaultResult() && nextResult != aggregate) {
                 return aggregate.join(nextResult);
             }
             return aggregate;
@@ -49,37 +73,69 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
         return Code.None;
     }
 
+    /**
+     * Start emitting into a new buffer for a method or block, returning
+     * the enclosing buffer so that {@link #endBlock} can restore it.
+     */
+    protected Code beginBlock() {
+        Code enclosing = code;
+        code = new Code();
+        enclosingCallSites.push(nCallSites);
+        nCallSites = 0;
+        return enclosing;
+    }
+
+    /**
+     * Finish the current method or block, giving its bytecode and call
+     * site count to compiled; that bytecode is peephole optimized if the
+     * compiler's optimize flag is set, then verified to get its max stack.
+     */
+    protected void endBlock(Code enclosing, STCompiledBlock compiled) {
+        byte[] bytecode = code.bytes();
+        code = enclosing;
+        if (compiler.optimize) {
+            bytecode = compiler.peepholeOptimizer.optimize(bytecode);
+        }
+        compiled.bytecode = bytecode;
+        compiled.nCallSites = nCallSites;
+        nCallSites = enclosingCallSites.pop();
+        try {
+            compiled.maxStack = BytecodeVerifier.verify(compiled);
+        } catch (IllegalArgumentException e) {
+            compiler.error("bad bytecode: " + e.getMessage());
+        }
+    }
+
     @Override
     public Code visitMain(SmalltalkParser.MainContext ctx) {
         currentClassScope = ctx.classScope;
-        Code code = defaultResult();
         if (currentClassScope != null) {
             pushScope(ctx.scope);
-            code = visitChildren(ctx);
-            code = aggregateResult(code, Compiler.push_atEnd());
+            Code enclosing = beginBlock();
+            visitChildren(ctx);
+            atEnd();
             ctx.scope.compiledBlock = new STCompiledBlock(currentClassScope, (STBlock) currentScope);
-            ctx.scope.compiledBlock.bytecode = code.bytes();
+            endBlock(enclosing, ctx.scope.compiledBlock);
             currentClassScope = null;
         }
 
-        return code;
+        return defaultResult();
     }
 
     @Override
     public Code visitFile(SmalltalkParser.FileContext ctx) {
         currentScope = compiler.symtab.GLOBALS;
-        Code code = visitChildren(ctx);
-        return code;
+        visitChildren(ctx);
+        return defaultResult();
     }
 
     @Override
     public Code visitClassDef(SmalltalkParser.ClassDefContext ctx) {
         currentClassScope = ctx.scope;
         pushScope(ctx.scope);
-        Code code = defaultResult();
-        code = code.join(visitChildren(ctx));
+        visitChildren(ctx);
         popScope();
-        return code;
+        return defaultResult();
     }
 
     public STCompiledBlock getCompiledPrimitive(STPrimitiveMethod primitive) {
@@ -90,11 +146,12 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
     @Override
     public Code visitNamedMethod(SmalltalkParser.NamedMethodContext ctx) {
         pushScope(ctx.scope);
-        Code code = visitChildren(ctx);
+        Code enclosing = beginBlock();
+        visitChildren(ctx);
         ctx.scope.compiledBlock = new STCompiledBlock(currentClassScope, (STBlock) currentScope);
-        ctx.scope.compiledBlock.bytecode = code.bytes();
+        endBlock(enclosing, ctx.scope.compiledBlock);
         popScope();
-        return code;
+        return defaultResult();
     }
 
     /**
@@ -108,16 +165,14 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
      */
     @Override
     public Code visitFullBody(SmalltalkParser.FullBodyContext ctx) {
-        Code code = defaultResult();
         if (ctx.localVars() != null) {
-            code = code.join(visit(ctx.localVars()));
+            visit(ctx.localVars());
         }
         List<SmalltalkParser.StatContext> stat = ctx.stat();
         for (int i = 0; i < stat.size(); i++) {
-            SmalltalkParser.StatContext statContext = stat.get(i);
-            code = code.join(visit(statContext));
+            visit(stat.get(i));
             if (i != stat.size() - 1) {
-                code = aggregateResult(code, Compiler.push_pop());
+                Compiler.push_pop(code);
             }
         }
         return code;
@@ -125,11 +180,13 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
 
     @Override
     public Code visitSmalltalkMethodBlock(SmalltalkParser.SmalltalkMethodBlockContext ctx) {
-        Code code = visit(ctx.body());
-        if (code == defaultResult()) {
-            return aggregateResult(code, Compiler.push_self_return());
+        int start = code.size();
+        visit(ctx.body());
+        if (code.size() == start) {
+            Compiler.push_self(code);
+            return methodReturn();
         }
-        return aggregateResult(code, Compiler.push_atEnd());
+        return atEnd();
     }
 
     @Override
@@ -137,7 +194,7 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
         if (currentScope instanceof STMethod) {
             return defaultResult();
         } else {
-            return Compiler.push_nil();
+            return Compiler.push_nil(code);
         }
     }
 
@@ -146,34 +203,29 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
         currentScope = ctx.scope;
         pushScope(currentScope);
         STBlock block = (STBlock) currentScope;
-        Code blkcode = Compiler.push_block(block.index);
-        Code code = visitChildren(ctx);
-        code = aggregateResult(code, Compiler.push_block_return());
+        Code enclosing = beginBlock();
+        visitChildren(ctx);
+        Compiler.push_block_return(code);
         ctx.scope.compiledBlock = new STCompiledBlock(currentClassScope, block);
-        ctx.scope.compiledBlock.bytecode = code.bytes();
+        endBlock(enclosing, ctx.scope.compiledBlock);
         popScope();
 
-        return blkcode;
+        return Compiler.push_block(code, block.index);
     }
 
     @Override
     public Code visitAssign(SmalltalkParser.AssignContext ctx) {
-        Code code = defaultResult();
-        code = code.join(aggregateResult(
-                visit(ctx.messageExpression()),
-                visit(ctx.lvalue())));
+        visit(ctx.messageExpression());
+        visit(ctx.lvalue());
         return code;
     }
 
     @Override
     public Code visitLvalue(SmalltalkParser.LvalueContext ctx) {
-        Symbol sym = ctx.sym;
-        if (sym instanceof STField) {
-            return Compiler.push_store_field(sym.getInsertionOrderNumber());
+        if (ctx.sym instanceof STField) {
+            return Compiler.push_store_field(code, ctx.index);
         } else {
-            int i = sym.getInsertionOrderNumber();
-            int d = ((STBlock) currentScope).getRelativeScopeCount(sym.getScope().getName());
-            return Compiler.push_store_local(d, i);
+            return storeLocal(ctx.depth, ctx.index);
         }
     }
 
@@ -189,17 +241,28 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
 
     @Override
     public Code visitBop(SmalltalkParser.BopContext ctx) {
-        return Compiler.push_send(1, getLiteralIndex(ctx.getText()));
+        return send(1, getLiteralIndex(ctx.getText()));
     }
 
     @Override
     public Code visitBinaryExpression(SmalltalkParser.BinaryExpressionContext ctx) {
-        Code code = visit(ctx.unaryExpression(0));
-        if (ctx.unaryExpression().size() >= 2) {
-            for (int i = 1; i < ctx.unaryExpression().size(); i++) {
-                code = aggregateResult(code, visit(ctx.unaryExpression(i)));
-                code = aggregateResult(code, visit(ctx.bop(i - 1)));
+        int i = 1;
+        Object value = compiler.foldConstants ? constantFolder.constantValue(ctx.unaryExpression(0)) : null;
+        if (value != null) {
+            // fold the longest constant prefix, as sends go left to right
+            for (; i < ctx.unaryExpression().size(); i++) {
+                Object right = constantFolder.constantValue(ctx.unaryExpression(i));
+                Object folded = right != null ? constantFolder.fold(value, ctx.bop(i - 1).getText(), right) : null;
+                if (folded == null) break;
+                value = folded;
             }
+            pushConstant(value);
+        } else {
+            visit(ctx.unaryExpression(0));
+        }
+        for (; i < ctx.unaryExpression().size(); i++) {
+            visit(ctx.unaryExpression(i));
+            visit(ctx.bop(i - 1));
         }
         return code;
     }
@@ -215,88 +278,283 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
     @Override
     public Code visitKeywordMethod(SmalltalkParser.KeywordMethodContext ctx) {
         pushScope(ctx.scope);
-        Code code = visit(ctx.methodBlock());
+        Code enclosing = beginBlock();
+        visit(ctx.methodBlock());
         ctx.scope.compiledBlock = new STCompiledBlock(currentClassScope, (STBlock) currentScope);
-        ctx.scope.compiledBlock.bytecode = code.bytes();
+        endBlock(enclosing, ctx.scope.compiledBlock);
         popScope();
-        return code;
+        return defaultResult();
     }
 
     @Override
     public Code visitId(SmalltalkParser.IdContext ctx) {
         String id = ctx.ID().getText();
-        Code code = defaultResult();
         Symbol sym = ctx.sym;
         if (sym instanceof STField) {
-            code = aggregateResult(code, Compiler.push_field(((STBlock) currentScope).getLocalIndex(ctx.ID().getText())));
-            return code;
+            int i = ctx.index;
+            if (compiler.superInstructions && code.lastOp() == Bytecode.SELF) {
+                code.removeLastOp();
+                return Compiler.push_self_field(code, i);
+            }
+            return Compiler.push_field(code, i);
         } else if (sym instanceof VariableSymbol) {
-            int i = sym.getInsertionOrderNumber();
-            int d = ((STBlock) currentScope).getRelativeScopeCount(sym.getScope().getName());
-            return aggregateResult(code, Compiler.push_local(d, i));
+            return pushLocal(ctx.depth, ctx.index);
         } else {
             int index = getLiteralIndex(id);
-            return aggregateResult(code, Compiler.push_global(index));
+            return Compiler.push_global(code, index);
         }
     }
 
     @Override
     public Code visitLiteral(SmalltalkParser.LiteralContext ctx) {
+        if (ctx.CHAR() != null) { // $c; c may be outside the BMP
+            return Compiler.push_char(code, ctx.getText().codePointAt(1));
+        }
         String id = ctx.getText();
         if (id.contains("\'")) {
             id = id.replace("\'", "");
         }
         switch (id) {
             case "true":
-                return Compiler.push_true();
+                return Compiler.push_true(code);
             case "false":
-                return Compiler.push_false();
+                return Compiler.push_false(code);
             case "nil":
-                return Compiler.push_nil();
+                return Compiler.push_nil(code);
             case "self":
-                return Compiler.push_self();
+                return Compiler.push_self(code);
         }
         if (ctx.NUMBER() == null) {
             int index = getLiteralIndex(id);
-            return Compiler.push_literal(index);
+            return Compiler.push_literal(code, index);
+        } else if (id.contains(".")) {
+            return Compiler.push_float(code, Float.parseFloat(id));
+        } else {
+            return pushInteger(new BigInteger(id));
+        }
+    }
+
+    /**
+     * Push an integer literal with the narrowest instruction that holds it:
+     * push_int, push_long or, beyond 64 bits, push_bigint with the
+     * decimal digits in the literal table.
+     */
+    protected Code pushInteger(BigInteger num) {
+        if (num.bitLength() < Integer.SIZE) {
+            return Compiler.push_int(code, num.intValue());
+        } else if (num.bitLength() < Long.SIZE) {
+            return Compiler.push_long(code, num.longValue());
+        }
+        return Compiler.push_bigint(code, getLiteralIndex(num.toString()));
+    }
+
+    /**
+     * Push a value computed by the {@link ConstantFolder}.
+     */
+    protected Code pushConstant(Object value) {
+        if (value instanceof Integer) {
+            return Compiler.push_int(code, (Integer) value);
+        } else if (value instanceof Float) {
+            return Compiler.push_float(code, (Float) value);
         } else {
-            int num = Integer.parseInt(ctx.getText());
-            return Compiler.push_int(num);
+            return (Boolean) value ? Compiler.push_true(code) : Compiler.push_false(code);
         }
     }
 
     @Override
     public Code visitKeywordSend(SmalltalkParser.KeywordSendContext ctx) {
-        Code code = defaultResult();
-        code = code.join(visit(ctx.recv));
+        if (compiler.inlineControl && !Compiler.getInlinedBlocks(ctx).isEmpty()) {
+            return inlineKeywordSend(ctx);
+        }
+        visit(ctx.recv);
         for (SmalltalkParser.BinaryExpressionContext binaryExpressionContext : ctx.args) {
-            code = code.join(visit(binaryExpressionContext));
+            visit(binaryExpressionContext);
         }
-        code = sendKeywordMsg(ctx.recv, code, ctx.args, ctx.KEYWORD());
-        return code;
+        return sendKeywordMsg(ctx.recv, code, ctx.args, ctx.KEYWORD());
     }
 
     @Override
     public Code visitUnarySuperMsgSend(SmalltalkParser.UnarySuperMsgSendContext ctx) {
-        Code code = Compiler.push_self();
-        code = aggregateResult(code, Compiler.push_send_super(0, getLiteralIndex(ctx.ID().getText())));
-        return code;
+        Compiler.push_self(code);
+        if (compiler.inlineCaches) {
+            return Compiler.push_send_super_ic(code, 0, getLiteralIndex(ctx.ID().getText()), nCallSites++);
+        }
+        return Compiler.push_send_super(code, 0, getLiteralIndex(ctx.ID().getText()));
     }
 
     @Override
     public Code visitUnaryMsgSend(SmalltalkParser.UnaryMsgSendContext ctx) {
-        Code code = visitChildren(ctx);
-        code = aggregateResult(code, Compiler.push_send(0, getLiteralIndex(ctx.ID().getText())));
-        return code;
+        visitChildren(ctx);
+        return send(0, getLiteralIndex(ctx.ID().getText()));
     }
 
     @Override
     public Code visitReturn(SmalltalkParser.ReturnContext ctx) {
-        Code e = visit(ctx.messageExpression());
+        visit(ctx.messageExpression());
         if (compiler.genDbg) {
-            e = Code.join(e, dbg(ctx.start)); // put dbg after expression as that is when it executes
+            dbg(ctx.start); // put dbg after expression as that is when it executes
         }
-        return e.join(Compiler.method_return());
+        return methodReturn();
+    }
+
+    /**
+     * Expand a send of ifTrue:, whileTrue:, to:do: etc... with literal
+     * block operands into branches. Like the message send it replaces,
+     * the code leaves one value on the stack: the value of the block
+     * that ran, nil if no block ran or after whileTrue:, and the receiver
+     * after to:do:.
+     */
+    protected Code inlineKeywordSend(SmalltalkParser.KeywordSendContext ctx) {
+        List<SmalltalkParser.BlockContext> blocks = Compiler.getInlinedBlocks(ctx);
+        switch (Compiler.getSelector(ctx)) {
+            case "ifTrue:":
+                return inlineConditional(ctx.recv, Bytecode.BRF, blocks.get(0), null, Bytecode.NIL);
+            case "ifFalse:":
+                return inlineConditional(ctx.recv, Bytecode.BRT, blocks.get(0), null, Bytecode.NIL);
+            case "ifTrue:ifFalse:":
+            case "ifFalse:ifTrue:":
+                short branch = Compiler.getSelector(ctx).startsWith("ifTrue:") ? Bytecode.BRF : Bytecode.BRT;
+                return inlineConditional(ctx.recv, branch, blocks.get(0), blocks.get(1), Bytecode.NIL);
+            case "and:":
+                return inlineConditional(ctx.recv, Bytecode.BRF, blocks.get(0), null, Bytecode.FALSE);
+            case "or:":
+                return inlineConditional(ctx.recv, Bytecode.BRT, blocks.get(0), null, Bytecode.TRUE);
+            case "whileTrue:":
+                return inlineWhileTrue(blocks.get(0), blocks.get(1));
+            case "to:do:":
+                return inlineToDo(ctx.recv, ctx.args.get(0), blocks.get(0));
+        }
+        throw new IllegalArgumentException("can't inline " + Compiler.getSelector(ctx));
+    }
+
+    /**
+     * recv; branch else; then; br end; else: (elseBlock or elseValue); end:
+     */
+    protected Code inlineConditional(SmalltalkParser.BinaryExpressionContext recv, short branch,
+                                     SmalltalkParser.BlockContext thenBlock,
+                                     SmalltalkParser.BlockContext elseBlock,
+                                     short elseValue) {
+        visit(recv);
+        int toElse = Compiler.push_branch(code, branch);
+        inlineBlock(thenBlock);
+        int toEnd = Compiler.push_branch(code, Bytecode.BR);
+        code.patchAddr(toElse, code.mark());
+        if (elseBlock != null) {
+            inlineBlock(elseBlock);
+        } else {
+            code.emitOp(elseValue);
+        }
+        code.patchAddr(toEnd, code.mark());
+        return code;
+    }
+
+    /**
+     * top: cond; brf end; body; pop; br top; end: nil
+     */
+    protected Code inlineWhileTrue(SmalltalkParser.BlockContext cond, SmalltalkParser.BlockContext body) {
+        int top = code.mark();
+        inlineBlock(cond);
+        int toEnd = Compiler.push_branch(code, Bytecode.BRF);
+        inlineBlock(body);
+        Compiler.push_pop(code);
+        code.patchAddr(Compiler.push_branch(code, Bytecode.BR), top);
+        code.patchAddr(toEnd, code.mark());
+        return Compiler.push_nil(code);
+    }
+
+    /**
+     * The loop variable and limit live in the two hidden slots of the
+     * host reserved by the inlined body. The start value stays on the
+     * stack as the result.
+     * <p>
+     * start; store i; limit; store n; pop;
+     * top: i; n; send '<='; brf end; body; pop; i; 1; send '+'; store i; pop; br top;
+     * end:
+     */
+    protected Code inlineToDo(SmalltalkParser.BinaryExpressionContext start,
+                              SmalltalkParser.BinaryExpressionContext limit,
+                              SmalltalkParser.BlockContext body) {
+        int i = ((STInlinedBlock) body.scope).firstSlot;
+        int n = i + 1;
+        visit(start);
+        storeLocal(0, i);
+        visit(limit);
+        storeLocal(0, n);
+        Compiler.push_pop(code);
+        int top = code.mark();
+        pushLocal(0, i);
+        pushLocal(0, n);
+        send(1, getLiteralIndex("<="));
+        int toEnd = Compiler.push_branch(code, Bytecode.BRF);
+        inlineBlock(body);
+        Compiler.push_pop(code);
+        pushLocal(0, i);
+        Compiler.push_int(code, 1);
+        send(1, getLiteralIndex("+"));
+        storeLocal(0, i);
+        Compiler.push_pop(code);
+        code.patchAddr(Compiler.push_branch(code, Bytecode.BR), top);
+        code.patchAddr(toEnd, code.mark());
+        return code;
+    }
+
+    /**
+     * Emit the body of an inlined block in place, within its scope.
+     */
+    protected void inlineBlock(SmalltalkParser.BlockContext ctx) {
+        pushScope(ctx.scope);
+        visit(ctx.body());
+        popScope();
+    }
+
+    public Code pushLocal(int d, int i) {
+        if (compiler.superInstructions && d == 0) {
+            return Compiler.push_local0(code, i);
+        }
+        return Compiler.push_local(code, d, i);
+    }
+
+    public Code storeLocal(int d, int i) {
+        if (compiler.superInstructions && d == 0) {
+            return Compiler.push_store_local0(code, i);
+        }
+        return Compiler.push_store_local(code, d, i);
+    }
+
+    /**
+     * Emit a send of nargs arguments: send_ic with the next call site if
+     * inline caches are enabled, otherwise send0..send2 if superinstructions
+     * are enabled.
+     */
+    public Code send(int nargs, int selectorIndex) {
+        if (compiler.inlineCaches) {
+            return Compiler.push_send_ic(code, nargs, selectorIndex, nCallSites++);
+        }
+        if (compiler.superInstructions && nargs <= 2) {
+            return Compiler.push_sendN(code, nargs, selectorIndex);
+        }
+        return Compiler.push_send(code, nargs, selectorIndex);
+    }
+
+    /**
+     * Emit a return, fusing it with a preceding self into return_self
+     * if superinstructions are enabled.
+     */
+    public Code methodReturn() {
+        if (compiler.superInstructions && code.lastOp() == Bytecode.SELF) {
+            code.removeLastOp();
+            return Compiler.return_self(code);
+        }
+        return Compiler.method_return(code);
+    }
+
+    /**
+     * Emit the failsafe pop self return at the end of a method.
+     */
+    public Code atEnd() {
+        Compiler.push_pop(code);
+        Compiler.push_self(code);
+        return methodReturn();
     }
 
     public void pushScope(Scope scope) {
@@ -313,8 +571,23 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
         currentScope = currentScope.getEnclosingScope();
     }
 
+    /**
+     * Intern s in the current class's literals (or the shared pool) and
+     * return its index. Literal operands are 16 bits, so a table that grows
+     * past that is a compile error, reported once; 0 stands in for the
+     * index so generation can go on.
+     */
     public int getLiteralIndex(String s) {
         int index = currentClassScope.stringTable.add(s);
+        if (index > Bytecode.MAX_SHORT_OPERAND) {
+            if (index == Bytecode.MAX_SHORT_OPERAND + 1) {
+                String where = currentClassScope.hasSharedLiterals() ?
+                    "the shared literal pool" : "class " + currentClassScope.getName();
+                compiler.error("more than " + index + " literals in " + where +
+                               "; literal operands are 16 bits");
+            }
+            return 0;
+        }
         return index;
     }
 
@@ -334,7 +607,7 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
     }
 
     public Code dbg(int line, int charPos) {
-        return Compiler.dbg(getLiteralIndex(compiler.getFileName()), line, charPos);
+        return Compiler.dbg(code, getLiteralIndex(compiler.getFileName()), line, charPos);
     }
 
     public Code store(String id) {
@@ -354,12 +627,11 @@ public class CodeGenerator extends SmalltalkBaseVisitor<Code> {
         for (int i = 1; i < keywords.size(); i++) {
             sb.append(keywords.get(i));
         }
-        Code e = Compiler.push_send(args.size(), getLiteralIndex(sb.toString()));
-        return aggregateResult(receiverCode, e);
+        return send(args.size(), getLiteralIndex(sb.toString()));
     }
 
     public String getProgramSourceForSubtree(ParserRuleContext ctx) {
-        return null;
+        return Compiler.getProgramSourceForSubtree(ctx);
     }
 
 
@@ -0,0 +1,110 @@
+package smalltalk.compiler;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.ConnectException;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/** STC -client: hand a compile to a running {@link CompileServer} and
+ *  print what it sends back, object file paths to stdout and errors to
+ *  stderr, as though STC had run here. Each request starts with the
+ *  server's token, read from the file it wrote at startup; see
+ *  {@link CompileServer#tokenFile}.
+ */
+public class CompileClient {
+	/** Arguments are an optional port then the usual STC arguments or -shutdown.
+	 *  Return false if the compile failed or there's no server.
+	 */
+	public static boolean main(String[] args) throws IOException {
+		int port = CompileServer.DEFAULT_PORT;
+		int first = 0;
+		if ( args.length>0 && args[0].matches("[0-9]+") ) {
+			port = Integer.parseInt(args[0]);
+			first = 1;
+		}
+		List<String> request = Arrays.asList(args).subList(first, args.length);
+		if ( !request.equals(Collections.singletonList(CompileServer.SHUTDOWN)) ) {
+			try { // catch usage errors without a round trip
+				STC.Options.parse(request.toArray(new String[0]));
+			}
+			catch (IllegalArgumentException iae) {
+				System.err.println(iae.getMessage());
+				System.err.println(STC.usage);
+				return false;
+			}
+		}
+		try {
+			return request(port, Paths.get("").toAbsolutePath(), request, System.out, System.err);
+		}
+		catch (ConnectException|NoSuchFileException e) {
+			System.err.println("no STC server on port "+port+"; start one with STC -server");
+			return false;
+		}
+	}
+
+	/** Send args to the server on port as though run from cwd, printing
+	 *  the response to out and err. Return true if the server says ok.
+	 */
+	public static boolean request(int port, Path cwd, List<String> args,
+	                              PrintStream out, PrintStream err)
+		throws IOException
+	{
+		return request(port, CompileServer.DEFAULT_TOKEN_DIR, cwd, args, out, err);
+	}
+
+	/** Like {@link #request(int, Path, List, PrintStream, PrintStream)} for
+	 *  a server that wrote its token to tokenDir.
+	 */
+	public static boolean request(int port, Path tokenDir, Path cwd, List<String> args,
+	                              PrintStream out, PrintStream err)
+		throws IOException
+	{
+		String token = CompileServer.readToken(tokenDir, port);
+		try (Socket s = new Socket(InetAddress.getLoopbackAddress(), port);
+		     BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+		     Writer w = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8)))
+		{
+			w.write(token+"\n");
+			w.write(cwd+"\n");
+			for (String arg : args) {
+				w.write(arg+"\n");
+			}
+			w.write("\n");
+			w.flush();
+			String line;
+			while ( (line = in.readLine())!=null ) {
+				int sp = line.indexOf(' ');
+				String kind = sp>=0 ? line.substring(0, sp) : line;
+				String text = sp>=0 ? line.substring(sp+1) : "";
+				switch ( kind ) {
+					case CompileServer.STO :
+					case CompileServer.OUT :
+						out.println(text);
+						break;
+					case CompileServer.ERR :
+						err.println(text);
+						break;
+					case CompileServer.OK :
+						return true;
+					case CompileServer.FAILED :
+						return false;
+				}
+			}
+			err.println("STC server closed the connection");
+			return false;
+		}
+	}
+}
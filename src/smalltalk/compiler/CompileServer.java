@@ -0,0 +1,360 @@
+package smalltalk.compiler;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.UncheckedIOException;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.PosixFilePermission;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/** A long-running STC, for tools like editors that compile on every save
+ *  and would otherwise pay JVM startup and a cold parser each time:
+ *
+ *  <pre>
+ *  $ java smalltalk.compiler.STC -server &amp;
+ *  $ java smalltalk.compiler.STC -client -O foo.st
+ *  </pre>
+ *
+ *  It listens on a loopback port only. A request is the server's token on
+ *  one line, the client's working directory on the next, then the usual
+ *  STC arguments, one per line, and an empty line; see
+ *  {@link STC.Options#resolveAgainst}. The response streams back lines
+ *  "sto path" per object file as it is written, "out text" and "err text"
+ *  for what STC would print, then "ok" or "failed". A request of just
+ *  -shutdown stops the server.
+ *
+ *  Any local user can connect to a loopback port, and a request says
+ *  where to read and write files, so at startup the server writes a
+ *  random token to a file only its owner can read, ~/.stc/server-port.token
+ *  (see {@link #tokenFile}), and refuses any request that doesn't start
+ *  with it, shutdown included. {@link CompileClient} reads the token from
+ *  there, so only the user who started the server can use it. The file is
+ *  deleted on shutdown. The server won't start if the token directory is
+ *  open to other users. A client must send its whole request within
+ *  {@link #requestTimeout} ms, so idle connections can't tie up workers;
+ *  connections that time out or send the wrong token are closed.
+ *
+ *  Requests run concurrently, each on a worker thread that keeps its
+ *  lexer and parser between requests (see {@link Compiler#reuseParsers}),
+ *  and the prediction DFA is warmed up once at startup.
+ */
+public class CompileServer {
+	public static final int DEFAULT_PORT = 7652;
+
+	public static final String SHUTDOWN = "-shutdown";
+
+	/** Kinds of response line */
+	public static final String STO = "sto";
+	public static final String OUT = "out";
+	public static final String ERR = "err";
+	public static final String OK = "ok";
+	public static final String FAILED = "failed";
+
+	/** Where servers write their tokens unless told otherwise */
+	public static final Path DEFAULT_TOKEN_DIR = Paths.get(System.getProperty("user.home"), ".stc");
+
+	public static final int DEFAULT_REQUEST_TIMEOUT = 10_000;
+
+	/** How long in ms to wait for each part of a request before dropping the connection */
+	public volatile int requestTimeout = DEFAULT_REQUEST_TIMEOUT;
+
+	protected final ServerSocket socket;
+	protected final ExecutorService workers;
+	protected final String token;
+	protected final Path tokenFile;
+	protected volatile boolean running = true;
+
+	public CompileServer(int port) throws IOException {
+		this(port, Runtime.getRuntime().availableProcessors(), DEFAULT_TOKEN_DIR);
+	}
+
+	/** Listen on port, or on any free port if 0, writing the token
+	 *  clients must send to a file in tokenDir.
+	 */
+	public CompileServer(int port, int nThreads, Path tokenDir) throws IOException {
+		socket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+		try {
+			token = newToken();
+			tokenFile = tokenFile(tokenDir, getPort());
+			writeToken(tokenFile, token);
+		}
+		catch (IOException|RuntimeException e) {
+			socket.close();
+			throw e;
+		}
+		workers = Executors.newFixedThreadPool(nThreads);
+	}
+
+	/** The file in tokenDir holding the token of the server on port */
+	public static Path tokenFile(Path tokenDir, int port) {
+		return tokenDir.resolve("server-"+port+".token");
+	}
+
+	/** The token of the server on port, from its file in tokenDir */
+	public static String readToken(Path tokenDir, int port) throws IOException {
+		return new String(Files.readAllBytes(tokenFile(tokenDir, port)), StandardCharsets.UTF_8).trim();
+	}
+
+	protected static String newToken() {
+		byte[] bytes = new byte[32];
+		new SecureRandom().nextBytes(bytes);
+		StringBuilder buf = new StringBuilder();
+		for (byte b : bytes) {
+			buf.append(String.format("%02x", b));
+		}
+		return buf.toString();
+	}
+
+	/** Write token to f, which only the owner may read or write. The file
+	 *  is created afresh with those permissions so it is never readable
+	 *  by others, even briefly. Its directory is created owner-only if
+	 *  missing; if it exists and others may use it, throw IOException
+	 *  rather than trust it.
+	 */
+	protected static void writeToken(Path f, String token) throws IOException {
+		boolean posix = FileSystems.getDefault().supportedFileAttributeViews().contains("posix");
+		Path dir = f.getParent();
+		if ( !Files.exists(dir, LinkOption.NOFOLLOW_LINKS) ) {
+			FileAttribute<?>[] dirAttrs = posix ?
+				new FileAttribute<?>[] {PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rwx------"))} :
+				new FileAttribute<?>[0];
+			Files.createDirectories(dir, dirAttrs);
+		}
+		else if ( !Files.isDirectory(dir, LinkOption.NOFOLLOW_LINKS) ) {
+			throw new IOException(dir+" isn't a directory; STC server tokens go there");
+		}
+		else if ( posix ) {
+			Set<PosixFilePermission> perms = Files.getPosixFilePermissions(dir, LinkOption.NOFOLLOW_LINKS);
+			perms.retainAll(EnumSet.range(PosixFilePermission.GROUP_READ, PosixFilePermission.OTHERS_EXECUTE));
+			if ( !perms.isEmpty() ) {
+				throw new IOException(dir+" is open to other users; chmod 700 it to run an STC server");
+			}
+		}
+		Files.deleteIfExists(f);
+		if ( posix ) {
+			Files.createFile(f, PosixFilePermissions.asFileAttribute(PosixFilePermissions.fromString("rw-------")));
+		}
+		else {
+			Files.createFile(f);
+			File file = f.toFile();
+			file.setReadable(false, false);
+			file.setWritable(false, false);
+			file.setReadable(true, true);
+			file.setWritable(true, true);
+		}
+		Files.write(f, (token+"\n").getBytes(StandardCharsets.UTF_8));
+	}
+
+	protected boolean isToken(String line) {
+		return line!=null &&
+			MessageDigest.isEqual(line.getBytes(StandardCharsets.UTF_8), token.getBytes(StandardCharsets.UTF_8));
+	}
+
+	public int getPort() {
+		return socket.getLocalPort();
+	}
+
+	/** Warm up then answer requests until asked to shut down */
+	public void serve() throws IOException {
+		Compiler.warmUp();
+		System.out.println("STC server listening on port "+getPort());
+		try {
+			while ( running ) {
+				Socket client;
+				try {
+					client = socket.accept();
+				}
+				catch (SocketException se) {
+					if ( !running ) break; // closed by shutdown()
+					throw se;
+				}
+				workers.execute(() -> handle(client));
+			}
+		}
+		finally {
+			workers.shutdown();
+		}
+	}
+
+	public void shutdown() {
+		running = false;
+		try { // before closing the socket, which lets serve() return
+			Files.deleteIfExists(tokenFile);
+		}
+		catch (IOException ioe) {
+			// a stale token is harmless; the next server replaces it
+		}
+		try {
+			socket.close();
+		}
+		catch (IOException ioe) {
+			// nothing to do; we're going away anyway
+		}
+	}
+
+	protected void handle(Socket client) {
+		try (Socket s = client;
+		     BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+		     Writer out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8)))
+		{
+			s.setSoTimeout(requestTimeout);
+			Response response = new Response(out);
+			if ( !isToken(readLine(in, token.length())) ) {
+				response.send(ERR, "bad or missing STC server token; use STC -client");
+				response.send(FAILED, "");
+				return;
+			}
+			String cwd = in.readLine();
+			if ( cwd==null ) return;
+			List<String> args = new ArrayList<>();
+			String line;
+			while ( (line = in.readLine())!=null && !line.isEmpty() ) {
+				args.add(line);
+			}
+			if ( args.equals(Collections.singletonList(SHUTDOWN)) ) {
+				response.send(OK, "");
+				shutdown();
+				return;
+			}
+			boolean ok = compile(Paths.get(cwd), args, response);
+			response.send(ok ? OK : FAILED, "");
+		}
+		catch (IOException|UncheckedIOException e) {
+			// client went away; nobody to tell
+		}
+	}
+
+	/** A line of at most max chars from in, or null at end of input or if
+	 *  the line is longer; don't let an unauthenticated client make us
+	 *  buffer an arbitrarily long line.
+	 */
+	protected static String readLine(BufferedReader in, int max) throws IOException {
+		StringBuilder buf = new StringBuilder();
+		int c;
+		while ( (c = in.read())!=-1 && c!='\n' ) {
+			if ( buf.length()==max ) return null;
+			buf.append((char)c);
+		}
+		if ( c==-1 && buf.length()==0 ) return null;
+		return buf.toString();
+	}
+
+	/** Run STC as if from directory cwd with args, sending results to response */
+	protected boolean compile(Path cwd, List<String> args, Response response) {
+		STC.Options options;
+		try {
+			options = STC.Options.parse(args.toArray(new String[0]));
+		}
+		catch (IllegalArgumentException iae) {
+			response.send(ERR, iae.getMessage());
+			return false;
+		}
+		options.resolveAgainst(cwd);
+		options.reuseParsers = true;
+		options.listeners.add(s -> {
+			if ( s.phase.equals(PhaseStats.SERIALIZE) ) {
+				response.send(STO, s.fileName);
+			}
+		});
+		try (PrintStream out = response.printStream(OUT);
+		     PrintStream err = response.printStream(ERR))
+		{
+			options.out = out;
+			options.err = err;
+			return STC.run(options);
+		}
+		catch (IOException ioe) {
+			response.send(ERR, ioe.toString());
+		}
+		catch (RuntimeException re) {
+			response.send(ERR, re.getMessage()!=null ? re.getMessage() : re.toString());
+		}
+		return false;
+	}
+
+	/** The lines sent back for one request; may be used by many threads */
+	protected static class Response {
+		protected final Writer out;
+
+		public Response(Writer out) {
+			this.out = out;
+		}
+
+		/** Send a line of kind per line of text */
+		public synchronized void send(String kind, String text) {
+			try {
+				if ( text.isEmpty() ) {
+					out.write(kind+"\n");
+				}
+				for (String line : text.split("\r?\n")) {
+					if ( !line.isEmpty() ) out.write(kind+" "+line+"\n");
+				}
+				out.flush();
+			}
+			catch (IOException ioe) {
+				throw new UncheckedIOException(ioe);
+			}
+		}
+
+		/** A stream that sends each line printed to it as a line of kind */
+		public PrintStream printStream(String kind) {
+			OutputStream lines = new OutputStream() {
+				final ByteArrayOutputStream line = new ByteArrayOutputStream();
+
+				@Override
+				public void write(int b) {
+					if ( b=='\n' ) {
+						flushLine();
+					}
+					else {
+						line.write(b);
+					}
+				}
+
+				@Override
+				public void close() {
+					if ( line.size()>0 ) flushLine();
+				}
+
+				void flushLine() {
+					send(kind, new String(line.toByteArray(), StandardCharsets.UTF_8));
+					line.reset();
+				}
+			};
+			try {
+				return new PrintStream(lines, true, "UTF-8");
+			}
+			catch (UnsupportedEncodingException uee) {
+				throw new AssertionError(uee); // every JVM has UTF-8
+			}
+		}
+	}
+}
@@ -1,21 +1,43 @@
 package smalltalk.compiler;
 
+import org.antlr.symtab.MethodSymbol;
 import org.antlr.symtab.Scope;
+import org.antlr.symtab.Symbol;
 import org.antlr.symtab.VariableSymbol;
+import org.antlr.v4.runtime.ANTLRErrorListener;
+import org.antlr.v4.runtime.BailErrorStrategy;
 import org.antlr.v4.runtime.CharStream;
 import org.antlr.v4.runtime.CharStreams;
 import org.antlr.v4.runtime.CommonTokenStream;
+import org.antlr.v4.runtime.ConsoleErrorListener;
+import org.antlr.v4.runtime.DefaultErrorStrategy;
 import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.atn.PredictionMode;
+import org.antlr.v4.runtime.misc.Interval;
+import org.antlr.v4.runtime.misc.ParseCancellationException;
 import org.antlr.v4.runtime.tree.ParseTreeWalker;
+import org.antlr.v4.runtime.tree.TerminalNode;
 import smalltalk.compiler.symbols.*;
 
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.UncheckedIOException;
+import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
 import java.util.function.Function;
 
-import static smalltalk.compiler.misc.Utils.*;
-
 public class Compiler {
     protected STSymbolTable symtab;
     protected SmalltalkParser parser;
@@ -23,8 +45,51 @@ public class Compiler {
     protected SmalltalkParser.FileContext fileTree;
     protected String fileName;
     public boolean genDbg; // generate dbg file,line instructions
+    public boolean parallelCodeGen; // generate code for each class on its own fork-join task
+    public boolean optimize; // run the peephole optimizer over each method and block
+    public boolean superInstructions; // emit fused instructions such as send0 and return_self
+    public boolean forceLL; // skip the SLL parsing attempt
+    public boolean inlineControl; // compile ifTrue:, whileTrue:, to:do: etc... with literal blocks to branches
+    public boolean reuseParsers; // service mode: reuse this thread's lexer, token stream and parser
+    public boolean sharedLiterals; // put all classes' literals in the symbol table's pool; disables parallelCodeGen
+    public boolean inlineCaches; // emit send_ic/send_super_ic with a call-site index per send
+    public boolean foldConstants; // evaluate Integer/Float operators on number literals at compile time
+    /** Told about lexical and syntax errors; the console by default */
+    public ANTLRErrorListener syntaxErrorListener = ConsoleErrorListener.INSTANCE;
+    public final PeepholeOptimizer peepholeOptimizer = new PeepholeOptimizer();
+
+    public final List<String> errors = Collections.synchronizedList(new ArrayList<>());
+
+    protected final List<CompilerListener> listeners = new CopyOnWriteArrayList<>();
+
+    /** The lexer, token stream and parser last used on a thread, for
+     *  {@link #reuseParsers}. A tree holds on to its tokens but not to the
+     *  parser, so the next parse on that thread can recycle all three.
+     */
+    protected static class ParserKit {
+        public final SmalltalkLexer lexer;
+        public final CommonTokenStream tokens;
+        public final SmalltalkParser parser;
+
+        public ParserKit(CharStream input) {
+            lexer = new SmalltalkLexer(input);
+            tokens = new CommonTokenStream(lexer);
+            parser = new SmalltalkParser(tokens);
+        }
+
+        public void reset(CharStream input) {
+            lexer.setInputStream(input);
+            tokens.setTokenSource(lexer); // discards old tokens
+            parser.setInputStream(tokens);
+        }
+    }
+
+    protected static final ThreadLocal<ParserKit> parserKits = new ThreadLocal<>();
 
-    public final List<String> errors = new ArrayList<>();
+    /** The bundled image, parsed by {@link #warmUp()} */
+    public static final String WARM_UP_IMAGE = "/image.st";
+
+    private static volatile boolean warmedUp;
 
     public Compiler() {
         symtab = new STSymbolTable();
@@ -50,36 +115,419 @@ public class Compiler {
      * Return null upon syntax error.
      */
     public ParserRuleContext parseClasses(CharStream input) {
-        SmalltalkLexer l = new SmalltalkLexer(input);
-        CommonTokenStream tokens = new CommonTokenStream(l);
-        //System.out.println(tokens.getTokens());
+        PhaseStats stats = startPhase(PhaseStats.PARSE);
+        SmalltalkLexer l;
+        if ( reuseParsers ) {
+            ParserKit kit = parserKits.get();
+            if ( kit==null ) {
+                kit = new ParserKit(input);
+                parserKits.set(kit);
+            }
+            else {
+                kit.reset(input);
+            }
+            l = kit.lexer;
+            tokens = kit.tokens;
+            this.parser = kit.parser;
+        }
+        else {
+            l = new SmalltalkLexer(input);
+            tokens = new CommonTokenStream(l);
+            //System.out.println(tokens.getTokens());
 
-        this.parser = new SmalltalkParser(tokens);
-        fileTree = parser.file();
+            this.parser = new SmalltalkParser(tokens);
+        }
+        l.removeErrorListeners();
+        l.addErrorListener(syntaxErrorListener);
+        fileTree = forceLL ? parseLL() : parseSLLThenLL();
+        if (stats != null) {
+            stats.tokens = tokens.getNumberOfOnChannelTokens();
+            finishPhase(stats);
+        }
 
         //System.out.println(((Tree)r.getTree()).toStringTree());
         if (parser.getNumberOfSyntaxErrors() > 0) return null;
         return fileTree;
     }
 
+    /**
+     * Try the faster SLL prediction first, bailing out at the first
+     * syntax error without reporting it. SLL only fails on input that's
+     * wrong or that needs full LL context, so rewind and reparse with LL
+     * and normal error reporting in that case.
+     */
+    protected SmalltalkParser.FileContext parseSLLThenLL() {
+        parser.getInterpreter().setPredictionMode(PredictionMode.SLL);
+        parser.removeErrorListeners();
+        parser.setErrorHandler(new BailErrorStrategy());
+        try {
+            return parser.file();
+        }
+        catch (ParseCancellationException pce) {
+            parser.reset(); // rewinds the token stream too
+            return parseLL();
+        }
+    }
+
+    protected SmalltalkParser.FileContext parseLL() {
+        parser.removeErrorListeners(); // a reused parser may have none or one already
+        parser.addErrorListener(syntaxErrorListener);
+        parser.getInterpreter().setPredictionMode(PredictionMode.LL);
+        parser.setErrorHandler(new DefaultErrorStrategy());
+        return parser.file();
+    }
+
+    /** Prime ANTLR's prediction caches by parsing the bundled image.st in
+     *  both SLL and LL modes. The DFA is shared by all parsers in the JVM,
+     *  so a long-running tool that compiles many small inputs calls this
+     *  once at startup rather than paying cold prediction on its first
+     *  compiles. Later calls do nothing.
+     */
+    public static void warmUp() {
+        if ( warmedUp ) return;
+        synchronized (Compiler.class) {
+            if ( warmedUp ) return;
+            String image;
+            try (InputStream in = Compiler.class.getResourceAsStream(WARM_UP_IMAGE)) {
+                if ( in==null ) { // e.g., stripped from a jar; nothing to do
+                    warmedUp = true;
+                    return;
+                }
+                image = new String(readAll(in), StandardCharsets.UTF_8);
+            }
+            catch (IOException ioe) {
+                throw new UncheckedIOException(ioe);
+            }
+            Compiler c = new Compiler();
+            c.parseClasses(CharStreams.fromString(image));
+            c.forceLL = true;
+            c.parseClasses(CharStreams.fromString(image));
+            warmedUp = true;
+        }
+    }
+
+    protected static byte[] readAll(InputStream in) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        byte[] buf = new byte[8192];
+        int n;
+        while ( (n = in.read(buf))>=0 ) {
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
     public void defSymbols(ParserRuleContext tree) {
+        PhaseStats stats = startPhase(PhaseStats.DEFINE);
         // Define classes/fields in first pass over tree
         // This allows us to have forward class references
         DefineSymbols def = new DefineSymbols(this);
         ParseTreeWalker walker = new ParseTreeWalker();
         walker.walk(def, tree);
+        layoutFields();
+        finishPhase(stats);
+    }
+
+    /**
+     * Compute the absolute field offsets of every class defined so far;
+     * redone after each definition pass as a class defined later might
+     * be the superclass of one defined earlier.
+     */
+    public void layoutFields() {
+        List<STClass> classes = new ArrayList<>();
+        for (Symbol s : symtab.GLOBALS.getSymbols()) {
+            if (s instanceof STClass) {
+                ((STClass) s).clearFieldLayout();
+                classes.add((STClass) s);
+            }
+        }
+        for (STClass cl : classes) {
+            STClass.layoutFields(cl);
+        }
     }
 
     public void resolveSymbols(ParserRuleContext tree) {
+        PhaseStats stats = startPhase(PhaseStats.RESOLVE);
         ResolveSymbols def = new ResolveSymbols(this);
         ParseTreeWalker walker = new ParseTreeWalker();
         walker.walk(def, tree);
+        finishPhase(stats);
     }
 
     public void generateCode(ParserRuleContext tree) {
+        if (parallelCodeGen && !sharedLiterals && tree instanceof SmalltalkParser.FileContext) {
+            generateCodeInParallel((SmalltalkParser.FileContext) tree);
+            return;
+        }
+        PhaseStats stats = startPhase(PhaseStats.GENERATE);
         CodeGenerator codeGenerator = new CodeGenerator(this);
         codeGenerator.visit(tree);
+        if (stats != null) {
+            countCode(stats, tree);
+            finishPhase(stats);
+        }
+    }
+
+    /**
+     * Generate code for each class definition, and main, with its own
+     * {@link CodeGenerator} on the common fork-join pool. A class only
+     * writes to its own {@link STClass#stringTable} and compiled blocks
+     * and each class is still compiled in order by one generator, so the
+     * output (including literal indexes) is the same as the sequential
+     * generator's. That's not so with {@link #sharedLiterals}, where indexes
+     * would depend on which thread reaches a literal first, so
+     * {@link #generateCode} stays sequential then.
+     */
+    public void generateCodeInParallel(SmalltalkParser.FileContext tree) {
+        List<ParserRuleContext> units = new ArrayList<>(tree.classDef());
+        units.add(tree.main());
+        generateCodeInParallel(units);
+    }
 
+    public void generateCodeInParallel(List<? extends ParserRuleContext> units) {
+        List<ForkJoinTask<?>> tasks = new ArrayList<>();
+        for (ParserRuleContext unit : units) {
+            tasks.add(ForkJoinPool.commonPool().submit(() -> generateCodeForUnit(unit)));
+        }
+        for (ForkJoinTask<?> task : tasks) {
+            task.join();
+        }
+    }
+
+    /** Generate code for a single classDef or main subtree */
+    public void generateCodeForUnit(ParserRuleContext unit) {
+        PhaseStats stats = startPhase(PhaseStats.GENERATE);
+        CodeGenerator codeGenerator = new CodeGenerator(this);
+        codeGenerator.currentScope = symtab.GLOBALS;
+        codeGenerator.visit(unit);
+        if (stats != null) {
+            countCode(stats, unit);
+            finishPhase(stats);
+        }
+    }
+
+    public void addListener(CompilerListener listener) {
+        listeners.add(listener);
+    }
+
+    /** Start measuring a phase; null if nobody is listening */
+    protected PhaseStats startPhase(String phase) {
+        return listeners.isEmpty() ? null : new PhaseStats(phase, fileName);
+    }
+
+    protected void finishPhase(PhaseStats stats) {
+        if (stats == null) return;
+        stats.finish();
+        firePhaseFinished(stats);
+    }
+
+    public void firePhaseFinished(PhaseStats stats) {
+        for (CompilerListener listener : listeners) {
+            listener.phaseFinished(stats);
+        }
+    }
+
+    /** Count the classes, methods, blocks and bytecode compiled from tree */
+    protected static void countCode(PhaseStats stats, ParserRuleContext tree) {
+        List<STClass> classes = new ArrayList<>();
+        if (tree instanceof SmalltalkParser.FileContext) {
+            for (SmalltalkParser.ClassDefContext c : ((SmalltalkParser.FileContext) tree).classDef()) {
+                classes.add(c.scope);
+            }
+            classes.add(((SmalltalkParser.FileContext) tree).main().classScope);
+        } else if (tree instanceof SmalltalkParser.ClassDefContext) {
+            classes.add(((SmalltalkParser.ClassDefContext) tree).scope);
+        } else if (tree instanceof SmalltalkParser.MainContext) {
+            classes.add(((SmalltalkParser.MainContext) tree).classScope);
+        }
+        for (STClass cl : classes) {
+            if (cl == null) continue;
+            stats.classes++;
+            for (MethodSymbol m : cl.getDefinedMethods()) {
+                STCompiledBlock method = ((STMethod) m).compiledBlock;
+                if (method == null) continue;
+                stats.methods++;
+                stats.bytecodeBytes += method.bytecode != null ? method.bytecode.length : 0;
+                if (method.blocks == null) continue;
+                for (STCompiledBlock blk : method.blocks) {
+                    stats.blocks++;
+                    stats.bytecodeBytes += blk.bytecode != null ? blk.bytecode.length : 0;
+                }
+            }
+        }
+    }
+
+    /**
+     * Define, resolve and generate code for just the named classes of an
+     * already parsed file ("MainClass" is the main program). Superclasses
+     * defined in the file are also defined, but not compiled, so that
+     * field indexes come out right. Used for incremental builds where
+     * the other classes' object files are still up to date.
+     */
+    public void compileClasses(SmalltalkParser.FileContext tree, Collection<String> classNames) {
+        Map<String, ParserRuleContext> units = getCompilationUnits(tree);
+        Set<String> needed = new HashSet<>();
+        for (String name : classNames) {
+            String c = name;
+            while (c != null && units.containsKey(c) && needed.add(c)) {
+                c = getSuperClassName(units.get(c));
+            }
+        }
+        List<ParserRuleContext> toCompile = new ArrayList<>();
+        for (Map.Entry<String, ParserRuleContext> unit : units.entrySet()) {
+            if (needed.contains(unit.getKey())) {
+                defSymbols(unit.getValue());
+            }
+            if (classNames.contains(unit.getKey())) {
+                toCompile.add(unit.getValue());
+            }
+        }
+        for (ParserRuleContext unit : toCompile) {
+            resolveSymbols(unit);
+        }
+        if (parallelCodeGen && !sharedLiterals) {
+            generateCodeInParallel(toCompile);
+        } else {
+            for (ParserRuleContext unit : toCompile) {
+                generateCodeForUnit(unit);
+            }
+        }
+    }
+
+    /**
+     * Map each class name defined in tree to its classDef subtree, in
+     * order, followed by "MainClass" mapped to main if there is a main
+     * program.
+     */
+    public static Map<String, ParserRuleContext> getCompilationUnits(SmalltalkParser.FileContext tree) {
+        Map<String, ParserRuleContext> units = new LinkedHashMap<>();
+        for (SmalltalkParser.ClassDefContext c : tree.classDef()) {
+            units.put(c.ID(0).getText(), c);
+        }
+        if (tree.main().body().getChildCount() > 0) {
+            units.put("MainClass", tree.main());
+        }
+        return units;
+    }
+
+    /**
+     * Return the superclass name for a classDef or main subtree, applying
+     * the same defaults as {@link DefineSymbols}.
+     */
+    public static String getSuperClassName(ParserRuleContext unit) {
+        if (unit instanceof SmalltalkParser.ClassDefContext) {
+            SmalltalkParser.ClassDefContext c = (SmalltalkParser.ClassDefContext) unit;
+            if (c.ID(1) != null) return c.ID(1).getText();
+            return c.ID(0).getText().equals("Object") ? null : "Object";
+        }
+        return "Object";
+    }
+
+    /** Return the original source text, including comments, for a subtree */
+    public static String getProgramSourceForSubtree(ParserRuleContext ctx) {
+        if (ctx.getStart() == null || ctx.getStop() == null ||
+            ctx.getStop().getStopIndex() < ctx.getStart().getStartIndex()) {
+            return "";
+        }
+        CharStream input = ctx.getStart().getInputStream();
+        return input.getText(Interval.of(ctx.getStart().getStartIndex(), ctx.getStop().getStopIndex()));
+    }
+
+    public static String getSelector(SmalltalkParser.KeywordSendContext ctx) {
+        StringBuilder buf = new StringBuilder();
+        for (TerminalNode kw : ctx.KEYWORD()) {
+            buf.append(kw.getText());
+        }
+        return buf.toString();
+    }
+
+    /**
+     * Return the literal blocks of a message send that can be expanded
+     * inline, in the order they appear, or an empty list if the send must
+     * be a real message send. Conditionals, and:, or: and whileTrue: need
+     * literal blocks without arguments for all of their block operands;
+     * to:do: needs a literal one-argument block. None may declare locals.
+     */
+    public static List<SmalltalkParser.BlockContext> getInlinedBlocks(SmalltalkParser.KeywordSendContext ctx) {
+        List<SmalltalkParser.BlockContext> blocks = new ArrayList<>();
+        switch (getSelector(ctx)) {
+            case "ifTrue:":
+            case "ifFalse:":
+            case "ifTrue:ifFalse:":
+            case "ifFalse:ifTrue:":
+            case "and:":
+            case "or:":
+                for (SmalltalkParser.BinaryExpressionContext arg : ctx.args) {
+                    blocks.add(getLiteralBlock(arg, 0));
+                }
+                break;
+            case "whileTrue:":
+                blocks.add(getLiteralBlock(ctx.recv, 0));
+                blocks.add(getLiteralBlock(ctx.args.get(0), 0));
+                break;
+            case "to:do:":
+                blocks.add(getLiteralBlock(ctx.args.get(1), 1));
+                break;
+        }
+        if (blocks.contains(null)) {
+            return Collections.emptyList();
+        }
+        return blocks;
+    }
+
+    /**
+     * Return the block if expr is just a literal block with nargs
+     * arguments and no locals, else null.
+     */
+    public static SmalltalkParser.BlockContext getLiteralBlock(SmalltalkParser.BinaryExpressionContext expr, int nargs) {
+        if (expr.unaryExpression().size() != 1 ||
+            !(expr.unaryExpression(0) instanceof SmalltalkParser.UnaryIsPrimaryContext)) {
+            return null;
+        }
+        SmalltalkParser.BlockContext blk = ((SmalltalkParser.UnaryIsPrimaryContext) expr.unaryExpression(0)).primary().block();
+        if (blk == null) {
+            return null;
+        }
+        int n = blk.blockArgs() != null ? blk.blockArgs().ID().size() : 0;
+        boolean hasLocals = blk.body().getChildCount() > 0 &&
+                            blk.body().getChild(0) instanceof SmalltalkParser.LocalVarsContext;
+        return n == nargs && !hasLocals ? blk : null;
+    }
+
+    /**
+     * Return the message send that blk is an inlinable operand of, or null.
+     */
+    public static SmalltalkParser.KeywordSendContext getInliningSend(SmalltalkParser.BlockContext blk) {
+        ParserRuleContext p = blk.getParent();                  // primary
+        p = p != null ? p.getParent() : null;                   // unaryExpression
+        p = p != null ? p.getParent() : null;                   // binaryExpression
+        p = p != null ? p.getParent() : null;                   // keywordExpression
+        if (p instanceof SmalltalkParser.KeywordSendContext) {
+            SmalltalkParser.KeywordSendContext send = (SmalltalkParser.KeywordSendContext) p;
+            if (getInlinedBlocks(send).contains(blk)) {
+                return send;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Describe the options that affect generated code; part of the
+     * fingerprints used for incremental builds.
+     */
+    public String describeOptions() {
+        return "dbg=" + genDbg + " O=" + optimize + " si=" + superInstructions + " inline=" + inlineControl +
+               " sharedLiterals=" + sharedLiterals + " ic=" + inlineCaches +
+               " fold=" + foldConstants;
+    }
+
+    /** Create the symbol for a class definition or MainClass; with
+     *  {@link #sharedLiterals}, it interns literals in the symbol table's pool.
+     */
+    public STClass createClass(String name, String superClassName) {
+        if (sharedLiterals) {
+            return new STClass(name, superClassName, symtab.literals);
+        }
+        return new STClass(name, superClassName);
     }
 
     public STBlock createBlock(STMethod currentMethod, ParserRuleContext tree) {
@@ -87,6 +535,11 @@ public class Compiler {
         return block;
     }
 
+    public STInlinedBlock createInlinedBlock(STMethod currentMethod, Scope enclosingScope,
+                                             ParserRuleContext tree, int nslots) {
+        return new STInlinedBlock(currentMethod, enclosingScope, tree, nslots);
+    }
+
     public STMethod createMethod(String selector, ParserRuleContext tree) {
         STMethod method = new STMethod(selector, tree);
         return method;
@@ -130,85 +583,244 @@ public class Compiler {
     }
 
     // Convenience methods for code gen
+    //
+    // Each instruction has two forms: one that appends to an existing
+    // Code buffer (what CodeGenerator uses so that a compiled block is
+    // emitted into a single buffer) and one that returns a fresh Code
+    // holding just that instruction.
 
     public static Code push_nil() {
-        return Code.of(Bytecode.NIL);
+        return push_nil(new Code(1));
+    }
+
+    public static Code push_nil(Code code) {
+        return code.emitOp(Bytecode.NIL);
     }
 
     public static Code push_atEnd() {
-        return Code.of(Bytecode.POP, Bytecode.SELF, Bytecode.RETURN);
+        return push_atEnd(new Code(3));
+    }
+
+    public static Code push_atEnd(Code code) {
+        return code.emitOp(Bytecode.POP).emitOp(Bytecode.SELF).emitOp(Bytecode.RETURN);
     }
 
     public static Code push_pop() {
-        return Code.of(Bytecode.POP);
+        return push_pop(new Code(1));
+    }
+
+    public static Code push_pop(Code code) {
+        return code.emitOp(Bytecode.POP);
     }
 
     public static Code push_self_return() {
-        return Code.of(Bytecode.SELF, Bytecode.RETURN);
+        return push_self_return(new Code(2));
+    }
+
+    public static Code push_self_return(Code code) {
+        return code.emitOp(Bytecode.SELF).emitOp(Bytecode.RETURN);
     }
 
     public static Code push_block_return() {
-        return Code.of(Bytecode.BLOCK_RETURN);
+        return push_block_return(new Code(1));
+    }
+
+    public static Code push_block_return(Code code) {
+        return code.emitOp(Bytecode.BLOCK_RETURN);
     }
 
     public static Code push_block(int index) {
-        return Code.of(Bytecode.BLOCK).join(shortToBytes(index));
+        return push_block(new Code(3), index);
+    }
+
+    public static Code push_block(Code code, int index) {
+        return code.emitOp(Bytecode.BLOCK).emitShort(index);
     }
 
     public static Code push_store_field(int index) {
-        return Code.of(Bytecode.STORE_FIELD).join(shortToBytes(index));
+        return push_store_field(new Code(3), index);
+    }
+
+    public static Code push_store_field(Code code, int index) {
+        return code.emitOp(Bytecode.STORE_FIELD).emitShort(index);
     }
 
     public static Code push_store_local(int arg, int index) {
-        return Code.of(Bytecode.STORE_LOCAL).join(shortToBytes(arg)).join(shortToBytes(index));
+        return push_store_local(new Code(5), arg, index);
+    }
+
+    public static Code push_store_local(Code code, int arg, int index) {
+        return code.emitOp(Bytecode.STORE_LOCAL).emitShort(arg).emitShort(index);
     }
 
     public static Code push_send(int arg, int index) {
-        return Code.of(Bytecode.SEND).join(shortToBytes(arg).join(toLiteral(index)));
+        return push_send(new Code(5), arg, index);
+    }
+
+    public static Code push_send(Code code, int arg, int index) {
+        return code.emitOp(Bytecode.SEND).emitShort(arg).emitLiteral(index);
     }
 
     public static Code push_field(int arg) {
-        return Code.of(Bytecode.PUSH_FIELD).join(shortToBytes(arg));
+        return push_field(new Code(3), arg);
+    }
+
+    public static Code push_field(Code code, int arg) {
+        return code.emitOp(Bytecode.PUSH_FIELD).emitShort(arg);
     }
 
     public static Code push_local(int arg, int index) {
-        return Code.of(Bytecode.PUSH_LOCAL).join(shortToBytes(arg)).join(shortToBytes(index));
+        return push_local(new Code(5), arg, index);
+    }
+
+    public static Code push_local(Code code, int arg, int index) {
+        return code.emitOp(Bytecode.PUSH_LOCAL).emitShort(arg).emitShort(index);
     }
 
     public static Code push_global(int index) {
-        return Code.of(Bytecode.PUSH_GLOBAL).join(toLiteral(index));
+        return push_global(new Code(3), index);
+    }
+
+    public static Code push_global(Code code, int index) {
+        return code.emitOp(Bytecode.PUSH_GLOBAL).emitLiteral(index);
     }
 
     public static Code push_true() {
-        return Code.of(Bytecode.TRUE);
+        return push_true(new Code(1));
+    }
+
+    public static Code push_true(Code code) {
+        return code.emitOp(Bytecode.TRUE);
     }
 
     public static Code push_false() {
-        return Code.of(Bytecode.FALSE);
+        return push_false(new Code(1));
+    }
+
+    public static Code push_false(Code code) {
+        return code.emitOp(Bytecode.FALSE);
     }
 
     public static Code push_self() {
-        return Code.of(Bytecode.SELF);
+        return push_self(new Code(1));
+    }
+
+    public static Code push_self(Code code) {
+        return code.emitOp(Bytecode.SELF);
     }
 
     public static Code push_literal(int index) {
-        return Code.of(Bytecode.PUSH_LITERAL).join(toLiteral(index));
+        return push_literal(new Code(3), index);
+    }
+
+    public static Code push_literal(Code code, int index) {
+        return code.emitOp(Bytecode.PUSH_LITERAL).emitLiteral(index);
     }
 
     public static Code push_int(int num) {
-        return Code.of(Bytecode.PUSH_INT).join(intToBytes(num));
+        return push_int(new Code(5), num);
+    }
+
+    public static Code push_int(Code code, int num) {
+        return code.emitOp(Bytecode.PUSH_INT).emitInt(num);
+    }
+
+    public static Code push_char(int codePoint) {
+        return push_char(new Code(5), codePoint);
+    }
+
+    public static Code push_char(Code code, int codePoint) {
+        return code.emitOp(Bytecode.PUSH_CHAR).emitInt(codePoint);
+    }
+
+    public static Code push_long(long num) {
+        return push_long(new Code(9), num);
+    }
+
+    public static Code push_long(Code code, long num) {
+        return code.emitOp(Bytecode.PUSH_LONG).emitLong(num);
+    }
+
+    public static Code push_bigint(int index) {
+        return push_bigint(new Code(3), index);
+    }
+
+    public static Code push_bigint(Code code, int index) {
+        return code.emitOp(Bytecode.PUSH_BIGINT).emitLiteral(index);
+    }
+
+    public static Code push_float(float num) {
+        return push_float(new Code(5), num);
+    }
+
+    public static Code push_float(Code code, float num) {
+        return code.emitOp(Bytecode.PUSH_FLOAT).emitFloat(num);
+    }
+
+    public static Code push_send_ic(Code code, int arg, int index, int callSite) {
+        return code.emitOp(Bytecode.SEND_IC).emitShort(arg).emitLiteral(index).emitShort(callSite);
+    }
+
+    public static Code push_send_super_ic(Code code, int arg, int index, int callSite) {
+        return code.emitOp(Bytecode.SEND_SUPER_IC).emitShort(arg).emitLiteral(index).emitShort(callSite);
     }
 
     public static Code push_send_super(int arg, int num) {
-        return Code.of(Bytecode.SEND_SUPER).join(shortToBytes(arg).join(toLiteral(num)));
+        return push_send_super(new Code(5), arg, num);
+    }
+
+    public static Code push_send_super(Code code, int arg, int num) {
+        return code.emitOp(Bytecode.SEND_SUPER).emitShort(arg).emitLiteral(num);
     }
 
     public static Code method_return() {
-        return Code.of(Bytecode.RETURN);
+        return method_return(new Code(1));
+    }
+
+    public static Code method_return(Code code) {
+        return code.emitOp(Bytecode.RETURN);
+    }
+
+    /**
+     * Emit a BR, BRF or BRT with a placeholder target, returning the
+     * address of the operand to fill in with {@link Code#patchAddr}.
+     */
+    public static int push_branch(Code code, short opcode) {
+        code.emitOp(opcode);
+        int operandAddress = code.size();
+        code.emitAddr(0);
+        return operandAddress;
+    }
+
+    public static Code push_local0(Code code, int index) {
+        return code.emitOp(Bytecode.PUSH_LOCAL0).emitShort(index);
+    }
+
+    public static Code push_store_local0(Code code, int index) {
+        return code.emitOp(Bytecode.STORE_LOCAL0).emitShort(index);
+    }
+
+    public static Code push_self_field(Code code, int index) {
+        return code.emitOp(Bytecode.PUSH_SELF_FIELD).emitShort(index);
+    }
+
+    public static Code return_self(Code code) {
+        return code.emitOp(Bytecode.RETURN_SELF);
+    }
+
+    /** Emit send0, send1 or send2; nargs must be 0..2 */
+    public static Code push_sendN(Code code, int nargs, int index) {
+        return code.emitOp((short) (Bytecode.SEND0 + nargs)).emitLiteral(index);
     }
 
     public static Code dbg(int filenameLitIndex, int line, int charPos) {
-        return null;
+        return dbg(new Code(7), filenameLitIndex, line, charPos);
+    }
+
+    public static Code dbg(Code code, int filenameLitIndex, int line, int charPos) {
+        return code.emitOp(Bytecode.DBG)
+                   .emitLiteral(filenameLitIndex)
+                   .emitInt(Bytecode.combineLineCharPos(line, charPos));
     }
 
     public String getFileName() {
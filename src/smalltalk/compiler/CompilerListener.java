@@ -0,0 +1,9 @@
+package smalltalk.compiler;
+
+/** Notified as each phase of a compilation finishes. Add one to a
+ *  {@link Compiler} with {@link Compiler#addListener}. Listeners may be
+ *  called from several threads at once during parallel or batch builds.
+ */
+public interface CompilerListener {
+	void phaseFinished(PhaseStats stats);
+}
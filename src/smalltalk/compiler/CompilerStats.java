@@ -0,0 +1,109 @@
+package smalltalk.compiler;
+
+import javax.json.Json;
+import javax.json.JsonArrayBuilder;
+import javax.json.JsonObject;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/** A listener that totals {@link PhaseStats} per phase over a whole build,
+ *  for STC -stats and -stats-json.
+ */
+public class CompilerStats implements CompilerListener {
+	public static final List<String> PHASES = Arrays.asList(
+		PhaseStats.PARSE, PhaseStats.DEFINE, PhaseStats.RESOLVE,
+		PhaseStats.GENERATE, PhaseStats.SERIALIZE
+	);
+
+	public static class Totals {
+		public final String phase;
+		public int calls;
+		public long wallNanos;
+		/** -1 if allocation couldn't be measured for some call */
+		public long allocatedBytes;
+		public long tokens;
+		public long classes;
+		public long methods;
+		public long blocks;
+		public long bytecodeBytes;
+		public long outputBytes;
+
+		public Totals(String phase) {
+			this.phase = phase;
+		}
+
+		void add(PhaseStats s) {
+			calls++;
+			wallNanos += s.wallNanos;
+			if ( allocatedBytes>=0 ) {
+				allocatedBytes = s.allocatedBytes>=0 ? allocatedBytes + s.allocatedBytes : -1;
+			}
+			tokens += s.tokens;
+			classes += s.classes;
+			methods += s.methods;
+			blocks += s.blocks;
+			bytecodeBytes += s.bytecodeBytes;
+			outputBytes += s.outputBytes;
+		}
+
+		public JsonObject serialize() {
+			return Json.createObjectBuilder()
+				.add("phase", phase)
+				.add("calls", calls)
+				.add("wallNanos", wallNanos)
+				.add("allocatedBytes", allocatedBytes)
+				.add("tokens", tokens)
+				.add("classes", classes)
+				.add("methods", methods)
+				.add("blocks", blocks)
+				.add("bytecodeBytes", bytecodeBytes)
+				.add("outputBytes", outputBytes)
+				.build();
+		}
+	}
+
+	protected final Map<String, Totals> totals = new LinkedHashMap<>();
+
+	public CompilerStats() {
+		for (String phase : PHASES) {
+			totals.put(phase, new Totals(phase));
+		}
+	}
+
+	@Override
+	public synchronized void phaseFinished(PhaseStats stats) {
+		totals.computeIfAbsent(stats.phase, Totals::new).add(stats);
+	}
+
+	public synchronized Totals get(String phase) {
+		return totals.get(phase);
+	}
+
+	/** A table with a row per phase that ran */
+	public synchronized String summary() {
+		StringBuilder buf = new StringBuilder();
+		buf.append(String.format("%-15s %6s %10s %12s %8s %7s %7s %7s %10s %10s%n",
+		                         "phase", "calls", "ms", "alloc KB", "tokens", "classes",
+		                         "methods", "blocks", "bytecode", "output"));
+		for (Totals t : totals.values()) {
+			if ( t.calls==0 ) continue;
+			buf.append(String.format("%-15s %6d %10.1f %12s %8d %7d %7d %7d %10d %10d%n",
+			                         t.phase, t.calls, t.wallNanos/1e6,
+			                         t.allocatedBytes>=0 ? String.valueOf(t.allocatedBytes/1024) : "n/a",
+			                         t.tokens, t.classes, t.methods, t.blocks,
+			                         t.bytecodeBytes, t.outputBytes));
+		}
+		return buf.toString();
+	}
+
+	public synchronized JsonObject serialize() {
+		JsonArrayBuilder phases = Json.createArrayBuilder();
+		for (Totals t : totals.values()) {
+			if ( t.calls==0 ) continue;
+			phases.add(t.serialize());
+		}
+		return Json.createObjectBuilder().add("phases", phases).build();
+	}
+}
@@ -40,12 +40,18 @@ public class DefineSymbols extends SmalltalkBaseListener {
             }
 //			System.out.println("\tinstance vars: "+instanceVars);
         }
-        if (currentScope.getSymbol(className) != null || className.equals("MainClass")) {
+        boolean redefinition = currentScope.getSymbol(className) != null || className.equals("MainClass");
+        if (redefinition) {
             compiler.error("redefinition of " + className);
-            return;
         }
-        STClass cl = new STClass(className, superClassName);
-        currentScope.define(cl);
+        STClass cl = compiler.createClass(className, superClassName);
+        if (redefinition) {
+            // keep the duplicate out of the symbol table but give its members
+            // somewhere to go other than the enclosing scope
+            cl.setScope(currentScope);
+        } else {
+            currentScope.define(cl);
+        }
         compiler.defineFields(cl, instanceVars);
         ctx.scope = cl;
         pushScope(cl);
@@ -61,7 +67,7 @@ public class DefineSymbols extends SmalltalkBaseListener {
         if (ctx.body().getChildCount() == 0) return;
         // pretend user defined "class MainClass [main [...]]"
         // define MainClass
-        STClass cl = new STClass("MainClass", "Object");
+        STClass cl = compiler.createClass("MainClass", "Object");
         ctx.classScope = cl;
         currentScope.define(cl);
         pushScope(cl);
@@ -175,7 +181,13 @@ public class DefineSymbols extends SmalltalkBaseListener {
         if (ctx.blockArgs() != null && ctx.blockArgs().ID() != null) {
             args = getTextValues(ctx.blockArgs().ID());
         }
-        STBlock blk = compiler.createBlock(currentMethod, ctx);
+        STBlock blk;
+        if (compiler.inlineControl && Compiler.getInliningSend(ctx) != null) {
+            // a to:do: body needs slots in the host for the loop variable and limit
+            blk = compiler.createInlinedBlock(currentMethod, currentScope, ctx, args.size() == 1 ? 2 : 0);
+        } else {
+            blk = compiler.createBlock(currentMethod, ctx);
+        }
         currentScope.define(blk); // must occur before defining variables
         compiler.defineArguments(blk, args);
         ctx.scope = blk;
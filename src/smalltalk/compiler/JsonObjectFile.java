@@ -0,0 +1,68 @@
+package smalltalk.compiler;
+
+import smalltalk.compiler.symbols.STClass;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import javax.json.stream.JsonGenerator;
+import javax.json.stream.JsonGeneratorFactory;
+import java.io.BufferedOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.StringReader;
+import java.io.StringWriter;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.util.function.Consumer;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.TRUNCATE_EXISTING;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+/** Writes the JSON form of a compiled class, streamed through a
+ *  {@link JsonGenerator} by {@link STClass#serialize(JsonGenerator, boolean)}
+ *  so that neither the JSON tree nor its string is ever in memory; only
+ *  the write buffer is. That streaming code is the one definition of the
+ *  JSON; {@link STClass#serialize(boolean)} gets its tree by parsing what
+ *  it writes (see {@link #toJsonObject}). {@link JsonObjectReader} loads
+ *  it back. {@link BinaryObjectFile} is the compact alternative.
+ */
+public class JsonObjectFile {
+	public static final int BUFFER_SIZE = 64*1024;
+
+	/** Looking up the JSON provider is slow, so do it once */
+	protected static final JsonGeneratorFactory generators = Json.createGeneratorFactory(null);
+
+	public static void write(STClass cl, Path file) throws IOException {
+		write(cl, file, false);
+	}
+
+	/** Write cl to file, with base64 bytecode if base64Bytecode */
+	public static void write(STClass cl, Path file, boolean base64Bytecode) throws IOException {
+		try (FileChannel channel = FileChannel.open(file, WRITE, CREATE, TRUNCATE_EXISTING);
+		     OutputStream out = new BufferedOutputStream(Channels.newOutputStream(channel), BUFFER_SIZE))
+		{
+			write(cl, out, base64Bytecode);
+		}
+	}
+
+	/** Write cl to out as UTF-8, leaving out open */
+	public static void write(STClass cl, OutputStream out, boolean base64Bytecode) {
+		JsonGenerator gen = generators.createGenerator(out);
+		cl.serialize(gen, base64Bytecode);
+		gen.flush(); // close() would close out too
+	}
+
+	/** The JSON that serialize writes to a generator, as a tree */
+	public static JsonObject toJsonObject(Consumer<JsonGenerator> serialize) {
+		StringWriter text = new StringWriter();
+		try (JsonGenerator gen = generators.createGenerator(text)) {
+			serialize.accept(gen);
+		}
+		try (JsonReader reader = Json.createReader(new StringReader(text.toString()))) {
+			return reader.readObject();
+		}
+	}
+}
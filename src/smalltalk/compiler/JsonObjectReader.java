@@ -0,0 +1,104 @@
+package smalltalk.compiler;
+
+import smalltalk.compiler.BinaryObjectReader.BlockView;
+import smalltalk.compiler.BinaryObjectReader.ClassView;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STMethodTable;
+
+import javax.json.Json;
+import javax.json.JsonArray;
+import javax.json.JsonObject;
+import javax.json.JsonReader;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.Collections;
+import java.util.List;
+
+/** Loads the JSON object files written by {@link JsonObjectFile} into the
+ *  same views that {@link BinaryObjectReader} gives for binary ones.
+ *  Bytecode may be an array of numbers ({@link STClass#FORMAT_VERSION_ARRAY},
+ *  also assumed for files without a formatVersion) or a base64 string
+ *  ({@link STClass#FORMAT_VERSION_BASE64}).
+ */
+public class JsonObjectReader {
+	public static ClassView read(Path file) throws IOException {
+		try (JsonReader reader = Json.createReader(Files.newBufferedReader(file, StandardCharsets.UTF_8))) {
+			return read(reader.readObject()).withLiteralPool(file);
+		}
+	}
+
+	/** Read a class from json; literals are left empty if they're in a pool */
+	public static ClassView read(JsonObject json) {
+		int version = json.getInt("formatVersion", STClass.FORMAT_VERSION_ARRAY);
+		if ( version!=STClass.FORMAT_VERSION_ARRAY && version!=STClass.FORMAT_VERSION_BASE64 ) {
+			throw new IllegalArgumentException("unsupported object file format version "+version);
+		}
+		JsonArray jsonMethods = json.getJsonArray("methods");
+		List<BlockView> methods = new ArrayList<>(jsonMethods.size());
+		for (int i = 0; i<jsonMethods.size(); i++) {
+			methods.add(readBlock(jsonMethods.getJsonObject(i), version));
+		}
+		String literalPool = json.getString("literalPool", null);
+		STMethodTable methodTable = null;
+		JsonArray jsonSlots = json.getJsonArray("methodTable");
+		if ( jsonSlots!=null ) {
+			STMethodTable.Entry[] slots = new STMethodTable.Entry[jsonSlots.size()];
+			for (int i = 0; i<slots.length; i++) {
+				if ( jsonSlots.isNull(i) ) continue;
+				JsonArray e = jsonSlots.getJsonArray(i);
+				slots[i] = new STMethodTable.Entry(e.getString(0), e.getString(1), e.getInt(2));
+			}
+			methodTable = new STMethodTable(slots);
+		}
+		return new ClassView(json.getString("name"),
+		                     json.getString("superClassName", null),
+		                     literalPool==null ? readStrings(json.getJsonArray("literals")) : new String[0],
+		                     literalPool,
+		                     readStrings(json.getJsonArray("fields")),
+		                     json.getInt("instanceSize", -1),
+		                     Collections.unmodifiableList(methods),
+		                     methodTable);
+	}
+
+	protected static BlockView readBlock(JsonObject json, int version) {
+		byte[] bytecode;
+		if ( version==STClass.FORMAT_VERSION_BASE64 ) {
+			bytecode = Base64.getDecoder().decode(json.getString("bytecode"));
+		}
+		else {
+			JsonArray a = json.getJsonArray("bytecode");
+			bytecode = new byte[a.size()];
+			for (int i = 0; i<bytecode.length; i++) {
+				bytecode[i] = (byte)a.getInt(i);
+			}
+		}
+		JsonArray jsonBlocks = json.getJsonArray("blocks");
+		BlockView[] blocks = new BlockView[jsonBlocks.size()];
+		for (int i = 0; i<blocks.length; i++) {
+			blocks[i] = readBlock(jsonBlocks.getJsonObject(i), version);
+		}
+		return new BlockView(json.getString("name"),
+		                     json.getString("qualifiedName"),
+		                     json.getBoolean("isClassMethod"),
+		                     json.getString("primitiveName", null),
+		                     json.getInt("nargs"),
+		                     json.getInt("nlocals"),
+		                     json.getInt("nCallSites", 0), // not in older files
+		                     json.getInt("maxStack", 0),
+		                     ByteBuffer.wrap(bytecode).asReadOnlyBuffer(),
+		                     blocks);
+	}
+
+	protected static String[] readStrings(JsonArray a) {
+		String[] strings = new String[a.size()];
+		for (int i = 0; i<strings.length; i++) {
+			strings[i] = a.getString(i);
+		}
+		return strings;
+	}
+}
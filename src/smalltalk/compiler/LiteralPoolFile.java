@@ -0,0 +1,93 @@
+package smalltalk.compiler;
+
+import org.antlr.symtab.StringTable;
+import smalltalk.compiler.symbols.STClass;
+
+import javax.json.Json;
+import javax.json.JsonReader;
+import javax.json.stream.JsonGenerator;
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/** The literal pool shared by classes compiled with
+ *  {@link Compiler#sharedLiterals}; see {@link STClass#hasSharedLiterals()}.
+ *  It's written once per output directory as {@link #FILE_NAME}, and
+ *  their object files name it instead of listing literals, so a literal
+ *  index in any of their bytecode is an index into this pool. It's JSON
+ *  or binary like the object files next to it:
+ *
+ *  <pre>
+ *  JSON:    {"literals":[literal, ...]}
+ *  binary:  int magic ("STLP"), short version, unsigned short nliterals, str literal*
+ *  </pre>
+ *
+ *  where str is as in {@link BinaryObjectFile}.
+ */
+public class LiteralPoolFile {
+	public static final String FILE_NAME = "literals.stl";
+
+	public static final int MAGIC = 0x53544C50; // "STLP"
+	public static final int VERSION = 1;
+
+	public static void write(StringTable literals, Path file, boolean json) throws IOException {
+		try (OutputStream out = new BufferedOutputStream(Files.newOutputStream(file))) {
+			if ( json ) {
+				JsonGenerator gen = JsonObjectFile.generators.createGenerator(out);
+				gen.writeStartObject();
+				gen.writeStartArray("literals");
+				for (String literal : literals.toArray()) {
+					gen.write(literal);
+				}
+				gen.writeEnd();
+				gen.writeEnd();
+				gen.flush();
+			}
+			else {
+				DataOutputStream data = new DataOutputStream(out);
+				data.writeInt(MAGIC);
+				data.writeShort(VERSION);
+				String[] strings = literals.toArray();
+				BinaryObjectFile.writeShort(data, strings.length, FILE_NAME, "number of literals");
+				for (int i = 0; i<strings.length; i++) {
+					BinaryObjectFile.writeString(data, strings[i], FILE_NAME, "literal "+i);
+				}
+				data.flush();
+			}
+		}
+	}
+
+	public static String[] read(Path file) throws IOException {
+		boolean json;
+		try (InputStream in = Files.newInputStream(file)) {
+			json = in.read()=='{';
+		}
+		if ( json ) {
+			try (JsonReader reader = Json.createReader(Files.newBufferedReader(file, StandardCharsets.UTF_8))) {
+				return JsonObjectReader.readStrings(reader.readObject().getJsonArray("literals"));
+			}
+		}
+		ByteBuffer buf;
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+		}
+		int magic = buf.getInt();
+		if ( magic!=MAGIC ) {
+			throw new IllegalArgumentException("not a literal pool file; bad magic number "+
+			                                   Integer.toHexString(magic));
+		}
+		int version = buf.getShort() & 0xFFFF;
+		if ( version!=VERSION ) {
+			throw new IllegalArgumentException("unsupported literal pool version "+version);
+		}
+		return BinaryObjectReader.readStrings(buf);
+	}
+}
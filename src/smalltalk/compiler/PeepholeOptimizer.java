@@ -0,0 +1,220 @@
+package smalltalk.compiler;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/** Removes redundant instructions from the bytecode of a compiled block.
+ *  The bytecode is decoded into a list of instructions using the operand
+ *  descriptions in {@link Bytecode#instructions}; each {@link Rule} then
+ *  rewrites that list until none of them changes anything. Finally,
+ *  the list is re-encoded and ADDR operands are relocated to the new
+ *  address of their target instruction.
+ *
+ *  Rules are pluggable: add to or replace {@link #rules}.
+ */
+public class PeepholeOptimizer {
+	/** One decoded instruction */
+	public static class Instr {
+		/** Address in the unoptimized bytecode or -1 if a rule created it */
+		public final int address;
+		/** The opcode followed by its operands */
+		public final byte[] bytes;
+
+		public Instr(int address, byte[] bytes) {
+			this.address = address;
+			this.bytes = bytes;
+		}
+
+		public short opcode() {
+			return (short)(bytes[0] & 0xFF);
+		}
+
+		@Override
+		public String toString() {
+			return Bytecode.instructions[opcode()].name+"@"+address;
+		}
+	}
+
+	/** A rewrite of the instructions for one block. Branch targets are the
+	 *  original addresses of instructions that some ADDR operand refers to;
+	 *  delete instructions with {@link #remove} so that branches to a
+	 *  removed instruction land on the one after it.
+	 */
+	public interface Rule {
+		/** Rewrite code in place; return true if anything changed */
+		boolean apply(List<Instr> code, Set<Integer> branchTargets);
+	}
+
+	/** Instructions that only push a value and have no other effect. BLOCK
+	 *  isn't one: removing it would leave its nested block in the method's
+	 *  blocks, unreferenced but still written out.
+	 */
+	public static final Set<Short> PURE_PUSHES = new HashSet<>(Arrays.asList(
+		Bytecode.NIL, Bytecode.SELF, Bytecode.TRUE, Bytecode.FALSE,
+		Bytecode.PUSH_CHAR, Bytecode.PUSH_INT, Bytecode.PUSH_FLOAT,
+		Bytecode.PUSH_LONG, Bytecode.PUSH_BIGINT,
+		Bytecode.PUSH_FIELD, Bytecode.PUSH_LOCAL, Bytecode.PUSH_LOCAL0,
+		Bytecode.PUSH_LITERAL
+	));
+
+	/** Instructions after which control never falls through to the next one */
+	public static final Set<Short> UNCONDITIONAL_EXITS = new HashSet<>(Arrays.asList(
+		Bytecode.RETURN, Bytecode.RETURN_SELF, Bytecode.BLOCK_RETURN, Bytecode.BR
+	));
+
+	/** Remove unreachable instructions following a return or unconditional
+	 *  branch, such as the "pop self return" failsafe after a method's final
+	 *  ^expr.
+	 */
+	public static final Rule DEAD_CODE = (code, branchTargets) -> {
+		boolean changed = false;
+		boolean reachable = true;
+		for (int i = 0; i<code.size(); ) {
+			Instr I = code.get(i);
+			if ( branchTargets.contains(I.address) ) reachable = true;
+			if ( !reachable ) {
+				remove(code, i, branchTargets);
+				changed = true;
+				continue;
+			}
+			if ( UNCONDITIONAL_EXITS.contains(I.opcode()) ) reachable = false;
+			i++;
+		}
+		return changed;
+	};
+
+	/** Remove "push x; pop" where pushing x has no side effects */
+	public static final Rule PUSH_POP = (code, branchTargets) -> {
+		boolean changed = false;
+		for (int i = 0; i+1<code.size(); ) {
+			Instr push = code.get(i);
+			Instr pop = code.get(i+1);
+			if ( PURE_PUSHES.contains(push.opcode()) && pop.opcode()==Bytecode.POP &&
+				 !branchTargets.contains(pop.address) )
+			{
+				remove(code, i+1, branchTargets);
+				remove(code, i, branchTargets);
+				changed = true;
+				continue;
+			}
+			i++;
+		}
+		return changed;
+	};
+
+	/** Of two adjacent dbg instructions, only the second one matters */
+	public static final Rule DUPLICATE_DBG = (code, branchTargets) -> {
+		boolean changed = false;
+		for (int i = 0; i+1<code.size(); ) {
+			if ( code.get(i).opcode()==Bytecode.DBG && code.get(i+1).opcode()==Bytecode.DBG ) {
+				remove(code, i, branchTargets);
+				changed = true;
+				continue;
+			}
+			i++;
+		}
+		return changed;
+	};
+
+	/** Remove code[i]. If it was a branch target, branches will go to the
+	 *  instruction that follows it instead, so that becomes a target.
+	 */
+	public static void remove(List<Instr> code, int i, Set<Integer> branchTargets) {
+		Instr I = code.remove(i);
+		if ( branchTargets.contains(I.address) && i<code.size() ) {
+			branchTargets.add(code.get(i).address);
+		}
+	}
+
+	public final List<Rule> rules = new ArrayList<>(Arrays.asList(DEAD_CODE, PUSH_POP, DUPLICATE_DBG));
+
+	public byte[] optimize(byte[] bytecode) {
+		if ( bytecode==null || bytecode.length==0 ) return bytecode;
+		List<Instr> code = decode(bytecode);
+		Set<Integer> branchTargets = getBranchTargets(code);
+		boolean changed = false;
+		boolean again = true;
+		while ( again ) {
+			again = false;
+			for (Rule rule : rules) {
+				if ( rule.apply(code, branchTargets) ) {
+					again = true;
+					changed = true;
+				}
+			}
+		}
+		return changed ? encode(code, bytecode.length) : bytecode;
+	}
+
+	public static List<Instr> decode(byte[] bytecode) {
+		List<Instr> code = new ArrayList<>();
+		int ip = 0;
+		while ( ip<bytecode.length ) {
+			int size = Bytecode.instructionSize(bytecode[ip] & 0xFF);
+			code.add(new Instr(ip, Arrays.copyOfRange(bytecode, ip, ip+size)));
+			ip += size;
+		}
+		return code;
+	}
+
+	public static Set<Integer> getBranchTargets(List<Instr> code) {
+		Set<Integer> targets = new HashSet<>();
+		for (Instr I : code) {
+			int[] offsets = getAddressOperandOffsets(I.opcode());
+			for (int offset : offsets) {
+				targets.add(Bytecode.getInt(I.bytes, offset));
+			}
+		}
+		return targets;
+	}
+
+	/** Encode instructions, relocating ADDR operands. An operand that
+	 *  referred to a removed instruction now refers to the next instruction
+	 *  that survived (or the end of the code).
+	 */
+	public static byte[] encode(List<Instr> code, int originalLength) {
+		// newAddress[a] is the new address of the first instruction at or after old address a
+		int[] newAddress = new int[originalLength+1];
+		int ip = 0;
+		int old = 0;
+		for (Instr I : code) {
+			if ( I.address>=0 ) {
+				while ( old<=I.address ) newAddress[old++] = ip;
+			}
+			ip += I.bytes.length;
+		}
+		while ( old<=originalLength ) newAddress[old++] = ip;
+
+		byte[] bytecode = new byte[ip];
+		ip = 0;
+		for (Instr I : code) {
+			System.arraycopy(I.bytes, 0, bytecode, ip, I.bytes.length);
+			for (int offset : getAddressOperandOffsets(I.opcode())) {
+				int target = newAddress[Bytecode.getInt(I.bytes, offset)];
+				System.arraycopy(new Code(4).emitInt(target).bytes(), 0, bytecode, ip+offset, 4);
+			}
+			ip += I.bytes.length;
+		}
+		return bytecode;
+	}
+
+	/** Offsets, from the opcode, of an instruction's ADDR operands */
+	public static int[] getAddressOperandOffsets(int opcode) {
+		Bytecode.Instruction I = Bytecode.instructions[opcode];
+		int n = 0;
+		for (int i = 0; i<I.n; i++) {
+			if ( I.type[i]==Bytecode.OperandType.ADDR ) n++;
+		}
+		int[] offsets = new int[n];
+		int offset = 1;
+		n = 0;
+		for (int i = 0; i<I.n; i++) {
+			if ( I.type[i]==Bytecode.OperandType.ADDR ) offsets[n++] = offset;
+			offset += I.type[i].sizeInBytes;
+		}
+		return offsets;
+	}
+}
@@ -0,0 +1,72 @@
+package smalltalk.compiler;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/** What one run of a compiler phase cost and produced. Time and
+ *  allocation are measured on the thread that ran the phase; with
+ *  parallel code generation each class is its own generateCode event,
+ *  measured on the pool thread that compiled it. Counts that don't
+ *  apply to a phase are 0.
+ */
+public class PhaseStats {
+	public static final String PARSE = "parse";
+	public static final String DEFINE = "defSymbols";
+	public static final String RESOLVE = "resolveSymbols";
+	public static final String GENERATE = "generateCode";
+	public static final String SERIALIZE = "serialize";
+
+	protected static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+
+	public final String phase;
+	/** The source file; for {@link #SERIALIZE}, the path of the object file written */
+	public final String fileName;
+
+	public long wallNanos;
+	/** Bytes allocated by the thread during the phase; -1 if the JVM can't tell */
+	public long allocatedBytes = -1;
+
+	public int tokens;
+	public int classes;
+	public int methods;
+	public int blocks;
+	public long bytecodeBytes;
+	/** Bytes of object files written */
+	public long outputBytes;
+
+	protected final long startNanos;
+	protected final long startAllocatedBytes;
+
+	/** Start measuring phase on the current thread */
+	public PhaseStats(String phase, String fileName) {
+		this.phase = phase;
+		this.fileName = fileName;
+		startAllocatedBytes = threadAllocatedBytes();
+		startNanos = System.nanoTime();
+	}
+
+	/** Stop measuring; call on the thread that created this */
+	public PhaseStats finish() {
+		wallNanos = System.nanoTime() - startNanos;
+		long allocated = threadAllocatedBytes();
+		if ( allocated>=0 && startAllocatedBytes>=0 ) {
+			allocatedBytes = allocated - startAllocatedBytes;
+		}
+		return this;
+	}
+
+	public static long threadAllocatedBytes() {
+		if ( threads instanceof com.sun.management.ThreadMXBean ) {
+			com.sun.management.ThreadMXBean t = (com.sun.management.ThreadMXBean) threads;
+			if ( t.isThreadAllocatedMemorySupported() && t.isThreadAllocatedMemoryEnabled() ) {
+				return t.getThreadAllocatedBytes(Thread.currentThread().getId());
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public String toString() {
+		return phase+" "+fileName+": "+wallNanos/1000+"us, "+allocatedBytes+" bytes allocated";
+	}
+}
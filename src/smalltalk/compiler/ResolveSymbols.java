@@ -3,12 +3,15 @@ package smalltalk.compiler;
 import org.antlr.symtab.Symbol;
 import org.antlr.symtab.VariableSymbol;
 import org.antlr.v4.runtime.Token;
+import smalltalk.compiler.symbols.STBlock;
+import smalltalk.compiler.symbols.STField;
 
-/** Set the symbol references in the parse tree nodes for ID and lvalues.
- *  Check that the left-hand side of assignments are variables. Other
- *  unknown symbols could simply be references to type names that will
- *  be compiled later. Mostly done to verify scopes/symbols in
- *  {@see smalltalk.compiler.test.TestIDLookup}.
+/** Set the symbol references in the parse tree nodes for ID and lvalues,
+ *  along with the (depth, index) address of variables so code generation
+ *  needn't search scopes. Check that the left-hand side of assignments
+ *  are variables. Other unknown symbols could simply be references to
+ *  type names that will be compiled later. Mostly done to verify
+ *  scopes/symbols in {@see smalltalk.compiler.test.TestIDLookup}.
  */
 public class ResolveSymbols extends SetScope {
 	public ResolveSymbols(Compiler compiler) {
@@ -18,11 +21,30 @@ public class ResolveSymbols extends SetScope {
 	@Override
 	public void enterId(SmalltalkParser.IdContext ctx) {
 		ctx.sym = currentScope.resolve(ctx.getStart().getText());
+		if ( ctx.sym instanceof STField ) {
+			ctx.index = ((STField)ctx.sym).getOffset();
+		}
+		else if ( ctx.sym instanceof VariableSymbol ) {
+			ctx.depth = getDepth(ctx.sym);
+			ctx.index = STBlock.getLocalIndex(ctx.sym);
+		}
 	}
 
 	@Override
 	public void enterLvalue(SmalltalkParser.LvalueContext ctx) {
 		ctx.sym = checkIDExists(ctx.getStart());
+		if ( ctx.sym instanceof STField ) {
+			ctx.index = ((STField)ctx.sym).getOffset();
+		}
+		else if ( ctx.sym!=null ) {
+			ctx.depth = getDepth(ctx.sym);
+			ctx.index = STBlock.getLocalIndex(ctx.sym);
+		}
+	}
+
+	/** How many contexts up from the current block's the local or argument sym lives */
+	protected int getDepth(Symbol sym) {
+		return ((STBlock)currentScope).getRelativeScopeCount(sym.getScope());
 	}
 
 	public VariableSymbol checkIDExists(Token ID) {
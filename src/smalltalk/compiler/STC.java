@@ -2,16 +2,29 @@ package smalltalk.compiler;
 
 import org.antlr.symtab.ClassSymbol;
 import org.antlr.symtab.Symbol;
+import org.antlr.v4.runtime.BaseErrorListener;
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.RecognitionException;
+import org.antlr.v4.runtime.Recognizer;
 import org.antlr.v4.runtime.misc.Utils;
 import smalltalk.compiler.symbols.STClass;
 import smalltalk.compiler.symbols.STSymbolTable;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InputStream;
+import java.io.PrintStream;
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 
 /** Smalltalk compiler.
  *
@@ -25,61 +38,441 @@ import java.nio.file.Paths;
  *
  *  You can also use `java -jar /Users/parrt/.m2/repository/edu/usfca/cs652/smalltalk-compiler/1.0/smalltalk-compiler-1.0-complete.jar`
  *  and it knows the main class to execute.
+ *
+ *  Object files are written in the binary format of {@link BinaryObjectFile}
+ *  unless you pass -json for {@link JsonObjectFile}.
  */
 public class STC {
+	public static final String usage =
+		"$ java smalltalk.compiler.STC [-dbg] [-dis] [-O] [-si] [-inline] [-ic] [-fold] [-parallel] [-json] [-incremental]\n" +
+		"                             [-ll] [-stats] [-stats-json file]\n" +
+		"                             [-j nthreads] [-o outputdir] file.st|dir...\n" +
+		"                             [-base64] [-shared-literals]\n" +
+		"$ java smalltalk.compiler.STC -dis file.sto...\n" +
+		"$ java smalltalk.compiler.STC -server [port]\n" +
+		"$ java smalltalk.compiler.STC -client [port] [options] file.st|dir...|-shutdown";
+
+	/** Command-line options; also creates compilers configured with them */
+	public static class Options {
+		public boolean genDbg;
+		public boolean disassemble;
+		public boolean optimize; // peephole optimize bytecode
+		public boolean superInstructions; // emit fused instructions
+		public boolean inlineControl; // inline conditionals and loops with literal blocks
+		public boolean inlineCaches; // number call sites for the VM's inline caches
+		public boolean foldConstants; // evaluate number literal arithmetic at compile time
+		public boolean forceLL; // parse with full LL prediction from the start
+		public boolean parallel; // generate code for classes in parallel
+		public boolean json; // write JSON object files instead of binary
+		public boolean base64; // JSON object files with base64 bytecode; implies json
+		public boolean sharedLiterals; // one literal pool for all classes, in literals.stl
+		public boolean incremental; // only recompile classes that changed
+		public boolean reuseParsers; // keep a parser per thread; not a command-line option
+		public int nThreads = Runtime.getRuntime().availableProcessors(); // for batch mode
+		/** null means "." for a single file or the source file's directory in batch mode */
+		public String outputDir;
+		public final List<String> files = new ArrayList<>();
+		/** Set by -stats or -stats-json; collects timings for all compilers */
+		public CompilerStats stats;
+		public boolean printStats;
+		public String statsJsonFile;
+		/** Told about every phase of every compiler, including stats */
+		public final List<CompilerListener> listeners = new ArrayList<>();
+		/** Where to report results and errors; the console unless compiling for {@link CompileServer} */
+		public PrintStream out = System.out;
+		public PrintStream err = System.err;
+
+		public static Options parse(String[] args) {
+			Options options = new Options();
+			for (int fi = 0; fi<args.length; fi++) {
+				switch ( args[fi] ) {
+					case "-dbg" :
+						options.genDbg = true;
+						break;
+					case "-dis" :
+						options.disassemble = true;
+						break;
+					case "-O" :
+						options.optimize = true;
+						break;
+					case "-si" :
+						options.superInstructions = true;
+						break;
+					case "-inline" :
+						options.inlineControl = true;
+						break;
+					case "-ic" :
+						options.inlineCaches = true;
+						break;
+					case "-fold" :
+						options.foldConstants = true;
+						break;
+					case "-parallel" :
+						options.parallel = true;
+						break;
+					case "-json" :
+						options.json = true;
+						break;
+					case "-base64" :
+						options.json = true;
+						options.base64 = true;
+						break;
+					case "-incremental" :
+						options.incremental = true;
+						break;
+					case "-shared-literals" :
+						options.sharedLiterals = true;
+						break;
+					case "-ll" :
+						options.forceLL = true;
+						break;
+					case "-stats" :
+						options.printStats = true;
+						break;
+					case "-stats-json" :
+						options.statsJsonFile = optionArg(args, ++fi);
+						break;
+					case "-j" :
+						options.nThreads = Integer.parseInt(optionArg(args, ++fi));
+						break;
+					case "-o" :
+						options.outputDir = optionArg(args, ++fi);
+						break;
+					default :
+						if ( args[fi].startsWith("-") ) {
+							throw new IllegalArgumentException("unknown option "+args[fi]);
+						}
+						options.files.add(args[fi]);
+						break;
+				}
+			}
+			if ( options.files.isEmpty() ) {
+				throw new IllegalArgumentException("no input files");
+			}
+			if ( options.sharedLiterals && options.incremental ) {
+				// recompiling some classes would renumber literals used by the rest
+				throw new IllegalArgumentException("-shared-literals can't be used with -incremental");
+			}
+			if ( options.printStats || options.statsJsonFile!=null ) {
+				options.stats = new CompilerStats();
+				options.listeners.add(options.stats);
+			}
+			return options;
+		}
+
+		/** Make file names relative to dir, such as a client's working
+		 *  directory, rather than to this process's working directory.
+		 *  A single file then compiles into dir by default, as it would
+		 *  into "." had STC been run in dir.
+		 */
+		public void resolveAgainst(Path dir) {
+			files.replaceAll(f -> dir.resolve(f).toString());
+			if ( outputDir!=null ) {
+				outputDir = dir.resolve(outputDir).toString();
+			}
+			else if ( !isBatch() ) {
+				outputDir = dir.toString();
+			}
+			if ( statsJsonFile!=null ) {
+				statsJsonFile = dir.resolve(statsJsonFile).toString();
+			}
+		}
+
+		/** Batch mode if more than one file or any directory is given */
+		public boolean isBatch() {
+			return files.size()>1 || new File(files.get(0)).isDirectory();
+		}
+
+		public Compiler newCompiler(STSymbolTable symtab) {
+			Compiler c = symtab!=null ? new Compiler(symtab) : new Compiler();
+			c.genDbg = genDbg;
+			c.optimize = optimize;
+			c.superInstructions = superInstructions;
+			c.inlineControl = inlineControl;
+			c.inlineCaches = inlineCaches;
+			c.foldConstants = foldConstants;
+			c.sharedLiterals = sharedLiterals;
+			c.forceLL = forceLL;
+			c.parallelCodeGen = parallel;
+			c.reuseParsers = reuseParsers;
+			c.syntaxErrorListener = new BaseErrorListener() {
+				@Override
+				public void syntaxError(Recognizer<?, ?> recognizer, Object offendingSymbol,
+				                        int line, int charPositionInLine, String msg,
+				                        RecognitionException e)
+				{
+					err.println("line "+line+":"+charPositionInLine+" "+msg);
+				}
+			};
+			for (CompilerListener l : listeners) {
+				c.addListener(l);
+			}
+			return c;
+		}
+
+		/** A listener for object files written outside of a compiler; null if nobody's listening */
+		public CompilerListener serializeListener() {
+			if ( listeners.isEmpty() ) return null;
+			return s -> {
+				for (CompilerListener l : listeners) {
+					l.phaseFinished(s);
+				}
+			};
+		}
+
+		protected static String optionArg(String[] args, int i) {
+			if ( i>=args.length ) {
+				throw new IllegalArgumentException(args[i-1]+" requires an argument");
+			}
+			return args[i];
+		}
+	}
+
 	public static void main(String[] args) throws Exception {
-		int fi = 0;
-		boolean dbg = false;
-		boolean dis = false; // disassemble
-		String outputDir = ".";
-		String stFileName = null;
-
-		while (fi<args.length) {
-			switch ( args[fi] ) {
-				case "-dbg" :
-					dbg = true;
-					break;
-				case "-dis" :
-					dis = true;
-					break;
-				case "-o" :
-					fi++;
-					outputDir = args[fi];
-					break;
-				default :
-					stFileName = args[fi];
-					break;
-			}
-			fi++;
-		}
-
-		if ( stFileName==null ) {
-			System.err.println("$ java smalltalk.compiler.STC [-dis] [-o outputdir] file.st");
+		if ( args.length>0 && args[0].equals("-server") ) {
+			int port = args.length>1 ? Integer.parseInt(args[1]) : CompileServer.DEFAULT_PORT;
+			new CompileServer(port).serve();
+			return;
+		}
+		if ( args.length>0 && args[0].equals("-client") ) {
+			System.exit(CompileClient.main(Arrays.copyOfRange(args, 1, args.length)) ? 0 : 1);
+			return;
+		}
+		Options options;
+		try {
+			options = Options.parse(args);
+		}
+		catch (IllegalArgumentException iae) {
+			System.err.println(iae.getMessage());
+			System.err.println(usage);
 			System.exit(1);
+			return;
 		}
-		STSymbolTable symtab = compile(stFileName, dbg);
-		writeObjectFiles(outputDir, stFileName, symtab);
-		if ( dis ) {
+
+		if ( !run(options) ) {
+			System.exit(1);
+		}
+	}
+
+	/** Compile, write object files and report as options say. Return false
+	 *  if a batch build failed; a single file's errors are thrown.
+	 */
+	public static boolean run(Options options) throws IOException {
+		if ( options.disassemble && options.files.stream().allMatch(f -> f.endsWith(".sto")) ) {
+			for (String f : options.files) {
+				options.out.print(disassembleObjectFile(Paths.get(f)));
+			}
+			return true;
+		}
+		if ( options.isBatch() ) {
+			boolean ok = compileBatch(options);
+			reportStats(options);
+			return ok;
+		}
+
+		String stFileName = options.files.get(0);
+		String outputDir = options.outputDir!=null ? options.outputDir : ".";
+		Compiler c = options.newCompiler(null);
+		if ( options.incremental ) {
+			compileIncremental(c, stFileName, outputDir, options.json, options.base64);
+			if ( options.disassemble ) {
+				disassembleOutput(outputDir, stFileName, c.symtab);
+			}
+			reportStats(options);
+			return true;
+		}
+		STSymbolTable symtab = compile(c, stFileName);
+		writeObjectFiles(outputDir, stFileName, symtab, options.json, options.base64, options.serializeListener());
+		if ( options.disassemble ) {
 			disassembleOutput(outputDir, stFileName, symtab);
 		}
+		reportStats(options);
+		return true;
+	}
+
+	/** Print and/or save the stats collected during the build, if asked to */
+	public static void reportStats(Options options) throws IOException {
+		if ( options.stats==null ) return;
+		if ( options.printStats ) {
+			options.out.print(options.stats.summary());
+		}
+		if ( options.statsJsonFile!=null ) {
+			Files.write(Paths.get(options.statsJsonFile),
+			            options.stats.serialize().toString().getBytes(StandardCharsets.UTF_8));
+		}
+	}
+
+	/** Compile all files and directories in options with a {@link BatchCompiler},
+	 *  reporting errors to stderr. Return false upon error.
+	 */
+	public static boolean compileBatch(Options options) throws IOException {
+		if ( options.incremental ) {
+			options.err.println("-incremental works on a single file only");
+			return false;
+		}
+		List<Path> files = BatchCompiler.findSourceFiles(options.files);
+		BatchCompiler batch = new BatchCompiler(options.nThreads, options::newCompiler);
+		if ( !batch.compile(files) ) {
+			for (String msg : batch.errors) {
+				options.err.println(msg);
+			}
+			return false;
+		}
+		batch.writeObjectFiles(options.outputDir, options.json, options.base64, options.serializeListener());
+		if ( options.disassemble ) {
+			for (Path f : files) {
+				String dir = options.outputDir!=null ? options.outputDir : f.toAbsolutePath().getParent().toString();
+				StringBuilder buf = new StringBuilder();
+				for (STClass cl : batch.getClasses(f)) {
+					buf.append(cl.toTestString());
+				}
+				Files.write(Paths.get(dir, f.getFileName()+"-teststring.txt"), buf.toString().getBytes());
+			}
+		}
+		return true;
 	}
 
 	public static void disassembleOutput(String dir, String stFileName, STSymbolTable symtab) throws IOException {
 		for (Symbol s : symtab.GLOBALS.getSymbols()) {
 			if ( s instanceof ClassSymbol ) {
 				String obj = ((STClass) s).toTestString();
-				Files.write(Paths.get(dir, stFileName+"-teststring.txt"), obj.getBytes());
+				Files.write(Paths.get(dir, Paths.get(stFileName).getFileName()+"-teststring.txt"), obj.getBytes());
 			}
 		}
 	}
 
 	public static void writeObjectFiles(String dir, String stFileName, STSymbolTable symtab) throws IOException {
+		writeObjectFiles(dir, stFileName, symtab, true);
+	}
+
+	/** Write a .sto file per class, as JSON or in the binary format of
+	 *  {@link BinaryObjectFile}.
+	 */
+	public static void writeObjectFiles(String dir, String stFileName, STSymbolTable symtab, boolean json) throws IOException {
+		writeObjectFiles(dir, stFileName, symtab, json, false, null);
+	}
+
+	/** Like {@link #writeObjectFiles(String, String, STSymbolTable, boolean)}
+	 *  but with base64 bytecode in JSON if base64, and reporting a serialize
+	 *  phase per class to listener if not null.
+	 */
+	public static void writeObjectFiles(String dir, String stFileName, STSymbolTable symtab,
+	                                    boolean json, boolean base64, CompilerListener listener)
+		throws IOException
+	{
+		boolean sharedLiterals = false;
 		for (Symbol s : symtab.GLOBALS.getSymbols()) {
 			if ( s instanceof ClassSymbol ) {
-				String obj = ((STClass) s).serialize().toString();
-				Files.write(Paths.get(dir, s.getName()+".sto"), obj.getBytes());
+				writeObjectFile(dir, (STClass) s, json, base64, listener);
+				sharedLiterals |= ((STClass) s).hasSharedLiterals();
+			}
+		}
+		if ( sharedLiterals ) {
+			writeLiteralPool(dir, symtab, json, listener);
+		}
+	}
+
+	public static void writeObjectFile(String dir, STClass cl, boolean json) throws IOException {
+		writeObjectFile(dir, cl, json, false, null);
+	}
+
+	public static void writeObjectFile(String dir, STClass cl, boolean json, boolean base64,
+	                                   CompilerListener listener)
+		throws IOException
+	{
+		Path file = Paths.get(dir, cl.getName()+".sto");
+		PhaseStats stats = listener!=null ? new PhaseStats(PhaseStats.SERIALIZE, file.toString()) : null;
+		if ( json ) {
+			JsonObjectFile.write(cl, file, base64);
+		}
+		else {
+			BinaryObjectFile.write(cl, file);
+		}
+		if ( stats!=null ) {
+			stats.finish();
+			stats.classes = 1;
+			stats.outputBytes = Files.size(file);
+			listener.phaseFinished(stats);
+		}
+	}
+
+	/** Write the {@link LiteralPoolFile} for classes with shared literals */
+	public static void writeLiteralPool(String dir, STSymbolTable symtab, boolean json, CompilerListener listener)
+		throws IOException
+	{
+		Path file = Paths.get(dir, LiteralPoolFile.FILE_NAME);
+		PhaseStats stats = listener!=null ? new PhaseStats(PhaseStats.SERIALIZE, file.toString()) : null;
+		LiteralPoolFile.write(symtab.literals, file, json);
+		if ( stats!=null ) {
+			stats.finish();
+			stats.outputBytes = Files.size(file);
+			listener.phaseFinished(stats);
+		}
+	}
+
+	/** Load an object file, JSON or binary, and return the same text as
+	 *  {@link STClass#toTestString()} for the class it was written from.
+	 */
+	public static String disassembleObjectFile(Path file) throws IOException {
+		boolean json;
+		try (InputStream in = Files.newInputStream(file)) {
+			json = in.read()=='{';
+		}
+		BinaryObjectReader.ClassView cl = json ? JsonObjectReader.read(file) : BinaryObjectReader.map(file);
+		return cl.toTestString();
+	}
+
+	public static List<String> compileIncremental(Compiler c, String fileName,
+	                                              String outputDir, boolean json)
+		throws IOException
+	{
+		return compileIncremental(c, fileName, outputDir, json, false);
+	}
+
+	/** Compile fileName but only regenerate the object files in outputDir
+	 *  for classes whose fingerprint (see {@link BuildCache}) changed since
+	 *  the last incremental build, or whose .sto file is missing. Return
+	 *  the names of the classes that were recompiled.
+	 */
+	public static List<String> compileIncremental(Compiler c, String fileName,
+	                                              String outputDir, boolean json, boolean base64)
+		throws IOException
+	{
+		URL imageURL = getFileURL(fileName);
+		String input = new String(Utils.readFile(imageURL.getFile()));
+		fileName = Paths.get(fileName).getFileName().toString();
+		c.setFileName(fileName);
+		ParserRuleContext tree = c.parseClasses(CharStreams.fromString(input));
+		if ( tree==null ) {
+			throw new RuntimeException("syntax errors in "+fileName);
+		}
+
+		BuildCache cache = new BuildCache(Paths.get(outputDir), fileName);
+		cache.load();
+		String options = c.describeOptions()+" json="+json+" base64="+base64;
+		Map<String,String> fingerprints =
+			BuildCache.fingerprint((SmalltalkParser.FileContext)tree, options, c.genDbg);
+		List<String> changed = new ArrayList<>();
+		for (Map.Entry<String,String> f : fingerprints.entrySet()) {
+			String className = f.getKey();
+			if ( !f.getValue().equals(cache.get(className)) ||
+				 !Files.exists(Paths.get(outputDir, className+".sto")) )
+			{
+				changed.add(className);
 			}
 		}
+
+		c.compileClasses((SmalltalkParser.FileContext)tree, changed);
+		if ( c.errors.size()>0 ) {
+			throw new RuntimeException("compile errors: "+c.errors.toString(),null);
+		}
+		for (String className : changed) {
+			writeObjectFile(outputDir, (STClass)c.symtab.GLOBALS.resolve(className), json, base64, c::firePhaseFinished);
+			cache.put(className, fingerprints.get(className));
+		}
+		cache.retainAll(fingerprints.keySet());
+		cache.save();
+		return changed;
 	}
 
 	public static STSymbolTable compile(String fileName, boolean genDbg) {
@@ -97,7 +490,12 @@ public class STC {
 			c = new Compiler();
 		}
 		c.genDbg = genDbg;
+		return compile(c, fileName);
+	}
 
+	/** Compile fileName with a compiler that the caller has already configured */
+	public static STSymbolTable compile(Compiler c, String fileName) {
+		STSymbolTable symtab;
 		URL imageURL = getFileURL(fileName);
 		try {
 			fileName = Paths.get(fileName).getFileName().toString();
@@ -35,6 +35,13 @@ public class ByteList {
 		n++;
 	}
 
+	/** Append all bytes of other with a single array copy */
+	public void addAll(ByteList other) {
+		ensureCapacity(n + other.n);
+		System.arraycopy(other.elements, 0, elements, n, other.n);
+		n += other.n;
+	}
+
 	public void setSize(int newSize) {
 		if ( newSize>=elements.length ) {
             ensureCapacity(newSize);
@@ -48,9 +55,9 @@ public class ByteList {
 
 	public void ensureCapacity(int newCapacity) {
 		int oldCapacity = elements.length;
-		if (n>=oldCapacity) {
+		if ( newCapacity>oldCapacity ) {
 			byte[] oldData = elements;
-			elements = new byte[newCapacity];
+			elements = new byte[Math.max(newCapacity, (oldCapacity * 3)/2 + 1)];
 			System.arraycopy(oldData, 0, elements, 0, n);
 		}
 	}
@@ -13,27 +13,18 @@ public class Utils {
 	}
 
 	public static Code toLiteral(int v) {
-		return shortToBytes(v);
+		return new Code(2).emitLiteral(v);
 	}
 
 	public static Code shortToBytes(int v) {
-		return Code.of(
-		(byte) ((v >> (8*1))&0xFF),
-		(byte) ((v >> (8*0))&0xFF)
-					  );
+		return new Code(2).emitShort(v);
 	}
 
 	public static Code intToBytes(int v)	{
-		return Code.of(
-			(byte) ((v >> (8 * 3)) & 0xFF),
-			(byte) ((v >> (8 * 2)) & 0xFF),
-			(byte) ((v >> (8 * 1)) & 0xFF),
-			(byte) ((v >> (8 * 0)) & 0xFF)
-		);
+		return new Code(4).emitInt(v);
 	}
 
 	public static Code floatToBytes(float v) {
-		int bits = Float.floatToIntBits(v);
-		return intToBytes(bits);
+		return new Code(4).emitFloat(v);
 	}
 }
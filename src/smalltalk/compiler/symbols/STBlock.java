@@ -1,6 +1,5 @@
 package smalltalk.compiler.symbols;
 
-import org.antlr.symtab.ClassSymbol;
 import org.antlr.symtab.MethodSymbol;
 import org.antlr.symtab.Scope;
 import org.antlr.symtab.Symbol;
@@ -44,6 +43,17 @@ public class STBlock extends MethodSymbol {
 
     public int numNestedBlocks;
 
+    /**
+     * Used to name inlined blocks; see {@link STInlinedBlock}.
+     */
+    public int numInlinedBlocks;
+
+    /**
+     * Hidden local slots reserved for the variables of inlined blocks
+     * hosted by this block; they follow the declared locals.
+     */
+    public int nInlinedLocals;
+
     public STCompiledBlock compiledBlock;
 
     /**
@@ -73,42 +83,59 @@ public class STBlock extends MethodSymbol {
     }
 
     public int nlocals() {
-        return this.getNumberOfVariables() - this.getNumberOfParameters();
+        return this.getNumberOfVariables() - this.getNumberOfParameters() + nInlinedLocals;
     }
 
     /**
-     * Given the name of a local variable or argument, return the index from 0.
-     * The arguments come first and then the locals. For example,
-     * at: x put: y [|a| ...]
-     * has  indexes x@0, y@1, a@x.
+     * Qualify with the nearest enclosing scope that is not inlined, as
+     * that is the block or method this one is compiled within.
      */
-    public int getLocalIndex(String name) {
-        Symbol symbol = this.resolve(name);
-        int index = ((STClass) symbol.getScope()).getFieldIndex(symbol.getName());
-        ClassSymbol classSymbol = ((STClass) symbol.getScope()).getSuperClassScope();
-        while (classSymbol != null) {
-            index = index + classSymbol.getNumberOfDefinedFields();
-            classSymbol = classSymbol.getSuperClassScope();
+    @Override
+    public String getQualifiedName(String separator) {
+        Scope scope = getEnclosingScope();
+        while (scope instanceof STInlinedBlock) {
+            scope = scope.getEnclosingScope();
         }
-        return index;
+        return scope.getName() + separator + getName();
+    }
+
+    /**
+     * Given the name of a field visible from this block, return its index
+     * within self, counting the fields of all superclasses first.
+     */
+    public int getLocalIndex(String name) {
+        return ((STField) this.resolve(name)).getOffset();
     }
 
     /**
-     * Look for name in current block; keep looking upwards in
-     * enclosingScope until found; return how many scopes we had to
-     * jump to find name. 0 indicates same scope.
+     * Return how many contexts up from this block's context we must go
+     * at runtime to reach the variables of scope; -1 if scope does not
+     * enclose this block. Inlined blocks share the context of their host
+     * so they don't count.
      */
-    public int getRelativeScopeCount(String name) {
+    public int getRelativeScopeCount(Scope scope) {
         int scopnum = 0;
-        Scope scope = this;
-        while (!scope.getName().equals(name)) {
-            scope = scope.getEnclosingScope();
-            if (scope != null) {
-                scopnum++;
-            } else {
+        Scope s = this;
+        while (s != scope) {
+            if (s == null) {
                 return -1;
             }
+            if (!(s instanceof STInlinedBlock)) {
+                scopnum++;
+            }
+            s = s.getEnclosingScope();
         }
         return scopnum;
     }
+
+    /**
+     * Return the index of a local or argument within the context that
+     * holds it; variables of inlined blocks live in their host's hidden slots.
+     */
+    public static int getLocalIndex(Symbol sym) {
+        if (sym.getScope() instanceof STInlinedBlock) {
+            return ((STInlinedBlock) sym.getScope()).firstSlot + sym.getInsertionOrderNumber();
+        }
+        return sym.getInsertionOrderNumber();
+    }
 }
@@ -6,11 +6,11 @@ import org.antlr.symtab.MethodSymbol;
 import org.antlr.symtab.StringTable;
 import org.antlr.symtab.Symbol;
 import org.stringtemplate.v4.ST;
+import smalltalk.compiler.JsonObjectFile;
+import smalltalk.compiler.LiteralPoolFile;
 
-import javax.json.Json;
-import javax.json.JsonArrayBuilder;
 import javax.json.JsonObject;
-import javax.json.JsonObjectBuilder;
+import javax.json.stream.JsonGenerator;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -21,13 +21,48 @@ public class STClass extends ClassSymbol {
 	/** The set of strings and symbols referenced by the {@link STCompiledBlock#bytecode} field
 	 *  for all methods and blocks compiled for this class.  Each class has a
 	 *  unique set of strings (which might have strings in common with another
-	 *  class's string table).
+	 *  class's string table), unless it shares a literal pool with all classes
+	 *  in the image; see {@link #hasSharedLiterals()}.
 	 */
-	public final StringTable stringTable = new StringTable();
+	public final StringTable stringTable;
+
+	protected final boolean sharedLiterals;
+
+	/** Absolute index in an instance of this class's first defined field;
+	 *  the inherited fields come before it. Set by {@link #layoutFields}.
+	 */
+	protected int firstFieldOffset;
+
+	/** Number of fields in an instance, inherited ones included; -1 until
+	 *  {@link #layoutFields} has run.
+	 */
+	protected int instanceSize = -1;
+
+	/** formatVersion in JSON object files: bytecode is an array of signed bytes */
+	public static final int FORMAT_VERSION_ARRAY = 1;
+	/** formatVersion in JSON object files: bytecode is a base64 string */
+	public static final int FORMAT_VERSION_BASE64 = 2;
 
 	public STClass(String name, String superClassName) {
 		super(name);
 		setSuperClass(superClassName);
+		this.stringTable = new StringTable();
+		this.sharedLiterals = false;
+	}
+
+	/** A class whose literals go in literalPool, shared with other classes */
+	public STClass(String name, String superClassName, StringTable literalPool) {
+		super(name);
+		setSuperClass(superClassName);
+		this.stringTable = literalPool;
+		this.sharedLiterals = true;
+	}
+
+	/** True if {@link #stringTable} is the image-wide pool written to
+	 *  {@link LiteralPoolFile#FILE_NAME} rather than this class's own.
+	 */
+	public boolean hasSharedLiterals() {
+		return sharedLiterals;
 	}
 
 	public int getFieldIndex(String name) {
@@ -35,6 +70,36 @@ public class STClass extends ClassSymbol {
 		return sym!=null && sym.getScope() instanceof STClass ? sym.getInsertionOrderNumber() : -1;
 	}
 
+	/** Compute the absolute offsets of cl's fields and of its superclasses'
+	 *  superclass first. Compiler.defSymbols does this for every class once
+	 *  all are defined, so field references needn't walk the superclass chain.
+	 */
+	public static int layoutFields(STClass cl) {
+		if ( cl.instanceSize>=0 ) return cl.instanceSize;
+		cl.instanceSize = cl.getNumberOfDefinedFields(); // in case of a superclass cycle
+		ClassSymbol superClass = cl.getSuperClassScope();
+		cl.firstFieldOffset = superClass instanceof STClass ? layoutFields((STClass)superClass) : 0;
+		cl.instanceSize = cl.firstFieldOffset + cl.getNumberOfDefinedFields();
+		return cl.instanceSize;
+	}
+
+	/** Forget the field layout, as the superclass chain might have changed */
+	public void clearFieldLayout() {
+		instanceSize = -1;
+	}
+
+	/** The absolute index of f, defined in this class, in an instance */
+	public int getFieldOffset(FieldSymbol f) {
+		if ( instanceSize<0 ) layoutFields(this);
+		return firstFieldOffset + f.getSlotNumber();
+	}
+
+	/** The number of fields in an instance, inherited ones included */
+	public int getInstanceSize() {
+		if ( instanceSize<0 ) layoutFields(this);
+		return instanceSize;
+	}
+
 	public STMethod resolveMethod(String name) {
 		return (STMethod)super.resolveMethod(name);
 	}
@@ -45,46 +110,85 @@ public class STClass extends ClassSymbol {
 	}
 
 	/** Return a JSON object with all relevant info about a ST class that
-	 *  we can write to the disk.  It includes all compiled blocks.
+	 *  we can write to the disk.  It includes all compiled blocks and, if
+	 *  all superclasses were compiled too, the {@link STMethodTable} as
+	 *  "methodTable": an array of null or [selector, className, index] per slot.
 	 *  The VM loads such JSON to execute code.
 	 */
 	public JsonObject serialize() {
-		JsonObjectBuilder builder =  Json.createObjectBuilder();
-		builder.add("name", name);
+		return serialize(false);
+	}
+
+	/** Like {@link #serialize()} but with each block's bytecode as a base64
+	 *  string instead of an array of numbers if base64Bytecode, which is
+	 *  {@link #FORMAT_VERSION_BASE64}.
+	 */
+	public JsonObject serialize(boolean base64Bytecode) {
+		return JsonObjectFile.toJsonObject(gen -> serialize(gen, base64Bytecode));
+	}
+
+	/** Write the JSON of {@link #serialize(boolean)} to gen as we go, without
+	 *  building it in memory; see {@link JsonObjectFile}. This defines the
+	 *  JSON; the tree form is parsed from it.
+	 */
+	public void serialize(JsonGenerator gen, boolean base64Bytecode) {
+		gen.writeStartObject();
+		gen.write("formatVersion", base64Bytecode ? FORMAT_VERSION_BASE64 : FORMAT_VERSION_ARRAY);
+		gen.write("name", name);
 		if ( superClassName!=null ) {
-			builder.add("superClassName", superClassName);
+			gen.write("superClassName", superClassName);
+		}
+		if ( sharedLiterals ) {
+			gen.write("literalPool", LiteralPoolFile.FILE_NAME);
 		}
-		JsonArrayBuilder litArray = Json.createArrayBuilder();
-		if ( stringTable!=null ) {
-			for (String literal : stringTable.toArray()) {
-				litArray.add(literal);
+		else {
+			gen.writeStartArray("literals");
+			if ( stringTable!=null ) {
+				for (String literal : stringTable.toArray()) {
+					gen.write(literal);
+				}
 			}
+			gen.writeEnd();
 		}
-		builder.add("literals", litArray);
-		JsonArrayBuilder fieldArray = Json.createArrayBuilder();
+		gen.writeStartArray("fields");
 		for (FieldSymbol f : getDefinedFields()) {
-			fieldArray.add(f.getName());
+			gen.write(f.getName());
 		}
-		builder.add("fields", fieldArray);
-		JsonArrayBuilder methodArray = Json.createArrayBuilder();
+		gen.writeEnd();
+		gen.write("instanceSize", getInstanceSize());
+		gen.writeStartArray("methods");
 		for(MethodSymbol m : getDefinedMethods()) {
-			methodArray.add(((STMethod) m).compiledBlock.serialize());
+			((STMethod) m).compiledBlock.serialize(gen, base64Bytecode);
+		}
+		gen.writeEnd();
+		STMethodTable methodTable = STMethodTable.build(this);
+		if ( methodTable!=null ) {
+			gen.writeStartArray("methodTable");
+			for (STMethodTable.Entry e : methodTable.slots) {
+				if ( e==null ) {
+					gen.writeNull();
+				}
+				else {
+					gen.writeStartArray().write(e.selector).write(e.className).write(e.index).writeEnd();
+				}
+			}
+			gen.writeEnd();
 		}
-		builder.add("methods", methodArray);
-		return builder.build();
+		gen.writeEnd();
 	}
 
+	public static final String testStringTemplate =
+		"name: <name>\n" +
+		"superClass: <superClassName>\n" +
+		"fields: <fields; separator={,}>\n" +
+		"literals: <literals:{s|'<s>'}; separator={,}>\n"+
+		"methods:\n" +
+		"    <methods; separator={<\\n>}>";
+
 	public String toTestString() { return getAsString(); }
 
 	public String getAsString() {
-		ST template = new ST(
-			"name: <name>\n" +
-			"superClass: <superClassName>\n" +
-			"fields: <fields; separator={,}>\n" +
-			"literals: <literals:{s|'<s>'}; separator={,}>\n"+
-			"methods:\n" +
-			"    <methods; separator={<\\n>}>"
-		);
+		ST template = new ST(testStringTemplate);
 		template.impl.nativeGroup.setListener(STCompiledBlock.templateErrorListener);
 		template.add("name", name);
 		if ( !superClassName.equals("Object") ) {
@@ -6,11 +6,11 @@ import org.stringtemplate.v4.ST;
 import org.stringtemplate.v4.misc.ErrorBuffer;
 import org.stringtemplate.v4.misc.STMessage;
 import smalltalk.compiler.Bytecode;
+import smalltalk.compiler.JsonObjectFile;
 
-import javax.json.Json;
-import javax.json.JsonArrayBuilder;
 import javax.json.JsonObject;
-import javax.json.JsonObjectBuilder;
+import javax.json.stream.JsonGenerator;
+import java.util.Base64;
 import java.util.List;
 
 /**
@@ -98,6 +98,19 @@ public class STCompiledBlock {
      */
     public final int nlocals;
 
+    /**
+     * The number of send_ic/send_super_ic call sites in bytecode, numbered
+     * from 0; the size of the inline cache the VM keeps for this block.
+     */
+    public int nCallSites;
+
+    /**
+     * The deepest the operand stack gets while running bytecode, as computed
+     * by {@link smalltalk.compiler.BytecodeVerifier}; the VM can size each
+     * context's stack to it.
+     */
+    public int maxStack;
+
     /**
      * In the compiler, this is the primitive name. In the VM, the equivalent
      * class has a 'primitive' field that points at an actual Primitive object.
@@ -122,7 +135,7 @@ public class STCompiledBlock {
         }
         isClassMethod = blk instanceof STMethod && ((STMethod) blk).isClassMethod;
         if(blk.isMethod()) {
-            List<Scope> blkt = blk.getAllNestedScopedSymbols();
+            List<Scope> blkt = Utils.filter(blk.getAllNestedScopedSymbols(), s -> !(s instanceof STInlinedBlock));
             blocks = new STCompiledBlock[blkt.size()];
             for (int i = 0; i < blkt.size(); i++) {
                 STBlock blockt = (STBlock) blkt.get(i);
@@ -142,30 +155,53 @@ public class STCompiledBlock {
      * The VM loads such JSON to execute code.
      */
     public JsonObject serialize() {
-        JsonObjectBuilder builder = Json.createObjectBuilder();
-        builder.add("name", name);
-        builder.add("isClassMethod", isClassMethod);
-        builder.add("qualifiedName", qualifiedName);
+        return serialize(false);
+    }
+
+    /**
+     * Like {@link #serialize()} but with bytecode as one base64 string if
+     * base64Bytecode; see {@link STClass#FORMAT_VERSION_BASE64}.
+     */
+    public JsonObject serialize(boolean base64Bytecode) {
+        return JsonObjectFile.toJsonObject(gen -> serialize(gen, base64Bytecode));
+    }
+
+    /** Write the JSON of {@link #serialize(boolean)} to gen as we go */
+    public void serialize(JsonGenerator gen, boolean base64Bytecode) {
+        gen.writeStartObject();
+        gen.write("name", name);
+        gen.write("isClassMethod", isClassMethod);
+        gen.write("qualifiedName", qualifiedName);
         if (primitiveName != null) {
-            builder.add("primitiveName", primitiveName);
+            gen.write("primitiveName", primitiveName);
         }
-        builder.add("nargs", nargs);
-        builder.add("nlocals", nlocals);
-        JsonArrayBuilder codeArray = Json.createArrayBuilder();
-        if (bytecode != null) {
-            for (byte b : bytecode) {
-                codeArray.add(b);
+        gen.write("nargs", nargs);
+        gen.write("nlocals", nlocals);
+        gen.write("nCallSites", nCallSites);
+        gen.write("maxStack", maxStack);
+        if (base64Bytecode) {
+            gen.write("bytecode", encodeBytecode());
+        } else {
+            gen.writeStartArray("bytecode");
+            if (bytecode != null) {
+                for (byte b : bytecode) {
+                    gen.write(b);
+                }
             }
+            gen.writeEnd();
         }
-        builder.add("bytecode", codeArray);
-        JsonArrayBuilder blockArray = Json.createArrayBuilder();
+        gen.writeStartArray("blocks");
         if (blocks != null) {
             for (STCompiledBlock block : blocks) {
-                blockArray.add(block.serialize());
+                block.serialize(gen, base64Bytecode);
             }
         }
-        builder.add("blocks", blockArray);
-        return builder.build();
+        gen.writeEnd();
+        gen.writeEnd();
+    }
+
+    protected String encodeBytecode() {
+        return Base64.getEncoder().encodeToString(bytecode != null ? bytecode : new byte[0]);
     }
 
     public String getAsString() {
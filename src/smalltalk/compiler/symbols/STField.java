@@ -6,4 +6,11 @@ public class STField extends FieldSymbol {
 	public STField(String name) {
 		super(name);
 	}
+
+	/** The absolute index of this field in an instance of its class,
+	 *  inherited fields first; see {@link STClass#getFieldOffset}.
+	 */
+	public int getOffset() {
+		return ((STClass)getScope()).getFieldOffset(this);
+	}
 }
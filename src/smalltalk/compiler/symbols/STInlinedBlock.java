@@ -0,0 +1,32 @@
+package smalltalk.compiler.symbols;
+
+import org.antlr.symtab.Scope;
+import org.antlr.v4.runtime.ParserRuleContext;
+
+/** A literal block argument of ifTrue:, whileTrue:, to:do: etc... that the
+ *  compiler expands inline with branch instructions rather than compiling
+ *  to a separate {@link STCompiledBlock}. It is still a scope so that its
+ *  arguments resolve as usual, but at runtime they live in hidden local
+ *  slots of the nearest real block or method, its host.
+ *
+ *  Inlined blocks have no index and do not appear in the blocks of the
+ *  surrounding method.
+ */
+public class STInlinedBlock extends STBlock {
+	/** The block or method whose context holds this block's variables */
+	public final STBlock host;
+
+	/** Index within host's locals of the first slot reserved for this block */
+	public final int firstSlot;
+
+	/** Create an inlined block within enclosingScope, reserving nslots
+	 *  hidden locals in its host.
+	 */
+	public STInlinedBlock(STMethod method, Scope enclosingScope, ParserRuleContext tree, int nslots) {
+		super(method.getName() + "-inlined" + method.numInlinedBlocks++, tree);
+		host = enclosingScope instanceof STInlinedBlock ?
+			((STInlinedBlock) enclosingScope).host : (STBlock) enclosingScope;
+		firstSlot = host.getNumberOfVariables() + host.nInlinedLocals;
+		host.nInlinedLocals += nslots;
+	}
+}
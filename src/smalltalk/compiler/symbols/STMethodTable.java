@@ -0,0 +1,117 @@
+package smalltalk.compiler.symbols;
+
+import org.antlr.symtab.ClassSymbol;
+import org.antlr.symtab.MethodSymbol;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/** The flattened method dictionary of a class: every selector the class
+ *  responds to, including inherited ones, mapped to the class that
+ *  defines the method that runs and that method's index within the
+ *  class's methods (the order of {@link STClass#getDefinedMethods()} and
+ *  of "methods" in object files). The VM can then dispatch a send with one
+ *  lookup rather than a walk up the superclass chain.
+ *
+ *  It's an open-addressed hash table, written to object files as is so
+ *  the VM needn't rebuild it: {@link #slots} has a power of two length
+ *  at least twice the number of selectors, and a selector lives at
+ *  the first free slot from selector.hashCode() &amp; (length-1) on,
+ *  wrapping around. Java's String hashCode() is part of the format.
+ *  As with {@link STMethod#isClassMethod}, class and instance methods
+ *  share the table.
+ */
+public class STMethodTable {
+	public static class Entry {
+		public final String selector;
+		public final String className;
+		public final int index;
+
+		public Entry(String selector, String className, int index) {
+			this.selector = selector;
+			this.className = className;
+			this.index = index;
+		}
+
+		@Override
+		public String toString() {
+			return selector+"->"+className+"["+index+"]";
+		}
+	}
+
+	/** Entries or null for free slots */
+	public final Entry[] slots;
+
+	public STMethodTable(Entry[] slots) {
+		if ( Integer.bitCount(slots.length)!=1 ) {
+			throw new IllegalArgumentException("method table capacity "+slots.length+" isn't a power of two");
+		}
+		this.slots = slots;
+	}
+
+	/** Build the table for cl; null unless all of its superclasses are
+	 *  known, up to one without a superclass, since otherwise some
+	 *  inherited methods would be missing.
+	 */
+	public static STMethodTable build(STClass cl) {
+		List<ClassSymbol> chain = new ArrayList<>();
+		Set<String> visited = new HashSet<>();
+		for (ClassSymbol c = cl; c!=null; c = c.getSuperClassScope()) {
+			if ( !visited.add(c.getName()) ) return null; // cycle
+			chain.add(c);
+			if ( c.getSuperClassName()!=null && c.getSuperClassScope()==null ) return null;
+		}
+		Map<String, Entry> methods = new LinkedHashMap<>();
+		for (ClassSymbol c : chain) { // subclass first so overrides win
+			int i = 0;
+			for (MethodSymbol m : c.getDefinedMethods()) {
+				methods.putIfAbsent(m.getName(), new Entry(m.getName(), c.getName(), i));
+				i++;
+			}
+		}
+		Entry[] slots = new Entry[capacityFor(methods.size())];
+		for (Entry e : methods.values()) {
+			int i = slot(e.selector, slots.length);
+			while ( slots[i]!=null ) {
+				i = (i+1) & (slots.length-1);
+			}
+			slots[i] = e;
+		}
+		return new STMethodTable(slots);
+	}
+
+	/** The smallest power of two at least twice n, so probes stay short */
+	public static int capacityFor(int n) {
+		int capacity = 1;
+		while ( capacity<2*n ) {
+			capacity <<= 1;
+		}
+		return capacity;
+	}
+
+	public static int slot(String selector, int capacity) {
+		return selector.hashCode() & (capacity-1);
+	}
+
+	/** Return the method run for selector; null if there's none */
+	public Entry lookup(String selector) {
+		int i = slot(selector, slots.length);
+		while ( slots[i]!=null ) {
+			if ( slots[i].selector.equals(selector) ) return slots[i];
+			i = (i+1) & (slots.length-1);
+		}
+		return null;
+	}
+
+	public int size() {
+		int n = 0;
+		for (Entry e : slots) {
+			if ( e!=null ) n++;
+		}
+		return n;
+	}
+}
@@ -1,9 +1,12 @@
 package smalltalk.compiler.symbols;
 
 import org.antlr.symtab.GlobalScope;
+import org.antlr.symtab.StringTable;
 
 public class STSymbolTable {
 	public final GlobalScope GLOBALS;
+	/** The literal pool for classes compiled with shared literals */
+	public final StringTable literals = new StringTable();
 
 	public STSymbolTable() {
 		this.GLOBALS = new GlobalScope(null);
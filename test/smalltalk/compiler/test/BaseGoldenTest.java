@@ -0,0 +1,35 @@
+package smalltalk.compiler.test;
+
+import org.junit.Test;
+import smalltalk.compiler.Compiler;
+
+import java.util.function.Consumer;
+
+import static org.junit.Assert.assertEquals;
+
+/** Compiles each sample in a directory of test/samples and compares the
+ *  result to its -teststring.txt. A subclass is a JUnit Parameterized test
+ *  whose parameters come from {@link #getAllTestDescriptors(String)} for
+ *  its directory; it passes along the options to compile with.
+ */
+public abstract class BaseGoldenTest extends BaseTest {
+	protected final String fileName;
+	protected final String code;
+	protected final String expecting;
+	protected final Consumer<Compiler> configure;
+
+	public BaseGoldenTest(String fileName, String code, String expecting, Consumer<Compiler> configure) {
+		this.fileName = fileName;
+		this.code = code;
+		this.expecting = expecting;
+		this.configure = configure;
+	}
+
+	@Test
+	public void testCode() throws Exception {
+		Compiler c = new Compiler();
+		configure.accept(c);
+		String result = compile(c, fileName, code);
+		assertEquals(expecting, result);
+	}
+}
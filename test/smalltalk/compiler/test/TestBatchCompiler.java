@@ -0,0 +1,92 @@
+package smalltalk.compiler.test;
+
+import org.junit.Before;
+import org.junit.Test;
+import smalltalk.compiler.BatchCompiler;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.symbols.STClass;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class TestBatchCompiler extends BaseTest {
+	protected Path dir;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = Paths.get(tmpdir, "batch");
+		new File(dir.toString()).mkdirs();
+		eraseFiles(dir.toString());
+	}
+
+	@Test public void testSuperclassInLaterFile() throws Exception {
+		Path b = write("b.st", "class B : A [ |y| foo [ ^y ] ]");
+		Path a = write("a.st", "class A [ |x| ]");
+		BatchCompiler batch = newBatch();
+		assertTrue(batch.errors.toString(), batch.compile(Arrays.asList(b, a)));
+		STClass B = (STClass)batch.symtab.GLOBALS.resolve("B");
+		String expecting =
+			"name: foo\n" +
+			"qualifiedName: B>>foo\n" +
+			"nargs: 0\n" +
+			"nlocals: 0\n" +
+			"0000:  push_field     1\n" +
+			"0003:  return           \n" +
+			"0004:  pop              \n" +
+			"0005:  self             \n" +
+			"0006:  return           \n";
+		assertEquals(expecting, B.resolveMethod("foo").compiledBlock.toTestString());
+	}
+
+	@Test public void testWritesObjectFilesNextToSources() throws Exception {
+		Path a = write("a.st", "class A [ |x| ]");
+		Path m = write("main.st", "A new.");
+		BatchCompiler batch = newBatch();
+		assertTrue(batch.errors.toString(), batch.compile(Arrays.asList(a, m)));
+		batch.writeObjectFiles(null, true);
+		assertTrue(Files.exists(dir.resolve("A.sto")));
+		assertTrue(Files.exists(dir.resolve("MainClass.sto")));
+	}
+
+	@Test public void testDirectoryIsExpanded() throws Exception {
+		write("b.st", "class B [ ]");
+		write("a.st", "class A [ ]");
+		List<Path> files = BatchCompiler.findSourceFiles(Collections.singletonList(dir.toString()));
+		assertEquals("[a.st, b.st]", Arrays.toString(files.stream().map(Path::getFileName).toArray()));
+	}
+
+	@Test public void testTwoMainsIsAnError() throws Exception {
+		Path a = write("a.st", "1.");
+		Path b = write("b.st", "2.");
+		BatchCompiler batch = newBatch();
+		assertFalse(batch.compile(Arrays.asList(a, b)));
+		assertEquals("["+b+": main program already defined in "+a+"]", batch.errors.toString());
+	}
+
+	@Test public void testRedefinitionAcrossFiles() throws Exception {
+		Path a = write("a.st", "class A [ ]");
+		Path b = write("b.st", "class A [ ]");
+		BatchCompiler batch = newBatch();
+		assertFalse(batch.compile(Arrays.asList(a, b)));
+		assertEquals("["+b+": redefinition of A]", batch.errors.toString());
+	}
+
+	protected BatchCompiler newBatch() {
+		return new BatchCompiler(2, Compiler::new);
+	}
+
+	protected Path write(String name, String content) throws Exception {
+		Path f = dir.resolve(name);
+		Files.write(f, content.getBytes());
+		return f;
+	}
+}
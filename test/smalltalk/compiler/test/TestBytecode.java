@@ -0,0 +1,138 @@
+package smalltalk.compiler.test;
+
+import org.junit.Test;
+import smalltalk.compiler.Bytecode;
+import smalltalk.compiler.BytecodeVerifier;
+import smalltalk.compiler.Code;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STSymbolTable;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestBytecode {
+	@Test public void testInstructionLengths() {
+		assertEquals(1, Bytecode.instructionLength[Bytecode.NIL]);
+		assertEquals(3, Bytecode.instructionLength[Bytecode.PUSH_FIELD]);
+		assertEquals(5, Bytecode.instructionLength[Bytecode.PUSH_INT]);
+		assertEquals(5, Bytecode.instructionLength[Bytecode.PUSH_LOCAL]);
+		assertEquals(7, Bytecode.instructionLength[Bytecode.SEND_IC]);
+		assertEquals(0, Bytecode.instructionLength[0]);
+	}
+
+	@Test public void testCursor() {
+		Code code = Compiler.push_int(-3)
+			.join(Compiler.push_local(1, 2))
+			.join(Compiler.push_send(1, 7))
+			.join(Compiler.push_nil());
+		byte[] bytes = code.bytes();
+		Bytecode.Cursor c = new Bytecode.Cursor().reset(bytes, 0);
+		assertTrue(c.next());
+		assertEquals(Bytecode.PUSH_INT, c.opcode);
+		assertEquals(1, c.nOperands);
+		assertEquals(-3, c.operands[0]);
+		assertTrue(c.next());
+		assertEquals(Bytecode.PUSH_LOCAL, c.opcode);
+		assertEquals(5, c.ip);
+		assertArrayEquals(new int[] {1, 2}, new int[] {c.operands[0], c.operands[1]});
+		assertEquals(8, c.operandAddresses[1]);
+		assertTrue(c.next());
+		assertEquals(Bytecode.SEND, c.opcode);
+		assertEquals(7, c.operands[1]);
+		assertTrue(c.next());
+		assertEquals(Bytecode.NIL, c.opcode);
+		assertEquals(0, c.nOperands);
+		assertFalse(c.next());
+		assertEquals(bytes.length, c.nextIP);
+	}
+
+	@Test public void testLongOperand() {
+		byte[] bytes = Compiler.push_long(-1L<<40 | 0x89ABCDEFL).bytes();
+		assertEquals(9, bytes.length);
+		Bytecode.Cursor c = new Bytecode.Cursor().reset(bytes, 0);
+		assertTrue(c.next());
+		assertEquals(Bytecode.PUSH_LONG, c.opcode);
+		assertEquals(-1L<<40 | 0x89ABCDEFL, c.longOperand(0));
+		assertFalse(c.next());
+	}
+
+	@Test public void testCharOutsideBMP() {
+		String grinning = new String(Character.toChars(0x1F600)); // two UTF-16 chars
+		STSymbolTable symtab = new Compiler().compile("T.st", "class T [ f [ ^$"+grinning+" ] ]");
+		STClass T = (STClass)symtab.GLOBALS.resolve("T");
+		String code = T.resolveMethod("f").compiledBlock.toTestString();
+		assertTrue(code, code.contains("push_char      128512\n"));
+	}
+
+	@Test public void testMaxStack() {
+		Code code = Compiler.push_int(1)
+			.join(Compiler.push_int(2))
+			.join(Compiler.push_int(3))
+			.join(Compiler.push_send(2, 0))
+			.join(Compiler.push_send(0, 0))
+			.join(Code.of(Bytecode.RETURN));
+		assertEquals(3, BytecodeVerifier.verify(code.bytes(), 0, 1, 0, "m"));
+	}
+
+	@Test public void testMaxStackAcrossBranches() {
+		// true ifTrue: [1] ifFalse: [2]. ^nil
+		Code code = Compiler.push_true()                 // 0
+			.join(Code.of(Bytecode.BRF).emitAddr(16))   // 1
+			.join(Compiler.push_int(1))                 // 6
+			.join(Code.of(Bytecode.BR).emitAddr(21))    // 11
+			.join(Compiler.push_int(2))                 // 16
+			.join(Compiler.push_pop())                  // 21
+			.join(Compiler.push_nil())
+			.join(Code.of(Bytecode.RETURN));
+		assertEquals(1, BytecodeVerifier.verify(code.bytes(), 0, 0, 0, "m"));
+	}
+
+	@Test public void testRejectsUnderflow() {
+		assertRejected(Compiler.push_pop(), "m at 0: stack underflow");
+	}
+
+	@Test public void testRejectsMismatchedDepths() {
+		// brf skips a push so the two paths meet with different depths
+		Code code = Compiler.push_true()
+			.join(Code.of(Bytecode.BRF).emitAddr(7))
+			.join(Compiler.push_nil())
+			.join(Compiler.push_nil())
+			.join(Code.of(Bytecode.RETURN));
+		assertRejected(code, "m at 7: stack depth 1 from 6 doesn't match 0");
+	}
+
+	@Test public void testRejectsBadBranch() {
+		Code code = Code.of(Bytecode.BR).emitAddr(2);
+		assertRejected(code, "m at 0: branch to bad address 2");
+	}
+
+	@Test public void testRejectsFallingOffTheEnd() {
+		assertRejected(Compiler.push_nil(), "m at 0: falls off the end of the code");
+	}
+
+	@Test public void testRejectsBadOperands() {
+		assertRejected(Compiler.push_literal(1).join(Code.of(Bytecode.RETURN)), "m at 0: literal 1 out of range");
+		assertRejected(Compiler.push_local(0, 1).join(Code.of(Bytecode.RETURN)), "m at 0: local 1 out of range");
+	}
+
+	protected void assertRejected(Code code, String expectedMessage) {
+		try {
+			BytecodeVerifier.verify(code.bytes(), 1, 1, 0, "m");
+			fail("expected "+expectedMessage);
+		}
+		catch (IllegalArgumentException e) {
+			assertEquals(expectedMessage, e.getMessage());
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testBadOpcode() {
+		Bytecode.Cursor c = new Bytecode.Cursor().reset(new byte[] {Bytecode.NIL, (byte)200}, 0);
+		c.next();
+		c.next();
+	}
+}
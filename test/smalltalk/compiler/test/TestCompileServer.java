@@ -0,0 +1,181 @@
+package smalltalk.compiler.test;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import smalltalk.compiler.CompileClient;
+import smalltalk.compiler.CompileServer;
+
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.PrintStream;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.nio.file.attribute.PosixFilePermissions;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestCompileServer extends BaseTest {
+	protected Path dir;
+	protected Path tokenDir;
+	protected CompileServer server;
+	protected Thread serverThread;
+	protected ByteArrayOutputStream out;
+	protected ByteArrayOutputStream err;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = Paths.get(tmpdir, "server");
+		new File(dir.toString()).mkdirs();
+		eraseFiles(dir.toString());
+		tokenDir = Paths.get(tmpdir, "server-tokens");
+		server = new CompileServer(0, 2, tokenDir);
+		serverThread = new Thread(() -> {
+			try {
+				server.serve();
+			}
+			catch (Exception e) {
+				e.printStackTrace(System.err);
+			}
+		});
+		serverThread.start();
+		out = new ByteArrayOutputStream();
+		err = new ByteArrayOutputStream();
+	}
+
+	@After
+	public void tearDown() throws Exception {
+		server.shutdown();
+		serverThread.join();
+	}
+
+	@Test public void testCompileRelativeToClientDir() throws Exception {
+		Files.write(dir.resolve("a.st"), "class A [ |x| foo [ ^x ] ]".getBytes());
+		assertTrue(err.toString(), request("-json", "a.st"));
+		assertEquals(dir.resolve("A.sto")+"\n", out.toString());
+		assertTrue(Files.exists(dir.resolve("A.sto")));
+	}
+
+	@Test public void testSyntaxErrorsSentToClient() throws Exception {
+		Files.write(dir.resolve("a.st"), "class A [ foo [ ^1 + ] ]".getBytes());
+		assertFalse(request("a.st"));
+		assertTrue(err.toString(), err.toString().startsWith("line 1:"));
+		assertEquals("", out.toString());
+	}
+
+	@Test public void testUsageError() throws Exception {
+		assertFalse(request("-bogus", "a.st"));
+		assertEquals("unknown option -bogus\n", err.toString());
+	}
+
+	@Test public void testShutdown() throws Exception {
+		assertTrue(CompileClient.request(server.getPort(), tokenDir, dir, Collections.singletonList(CompileServer.SHUTDOWN),
+		                                 new PrintStream(out), new PrintStream(err)));
+		serverThread.join();
+		assertFalse(Files.exists(CompileServer.tokenFile(tokenDir, server.getPort())));
+	}
+
+	@Test public void testTokenFileIsPrivate() throws Exception {
+		Path f = CompileServer.tokenFile(tokenDir, server.getPort());
+		assertEquals(64, CompileServer.readToken(tokenDir, server.getPort()).length());
+		if ( Files.getFileStore(f).supportsFileAttributeView("posix") ) {
+			assertEquals("rw-------", PosixFilePermissions.toString(Files.getPosixFilePermissions(f)));
+		}
+	}
+
+	@Test public void testRequestWithoutTokenRefused() throws Exception {
+		Files.write(dir.resolve("a.st"), "class A [ ]".getBytes());
+		List<String> response = rawRequest(dir.toString(), "a.st");
+		assertEquals(Arrays.asList("err bad or missing STC server token; use STC -client", "failed"), response);
+		assertFalse(Files.exists(dir.resolve("A.sto")));
+	}
+
+	@Test public void testShutdownWithWrongTokenRefused() throws Exception {
+		List<String> response = rawRequest("0123456789abcdef", dir.toString(), CompileServer.SHUTDOWN);
+		assertEquals("failed", response.get(response.size()-1));
+		assertTrue(serverThread.isAlive());
+		Files.write(dir.resolve("a.st"), "class A [ ]".getBytes());
+		assertTrue(err.toString(), request("a.st")); // still serving
+	}
+
+	@Test public void testIdleConnectionDropped() throws Exception {
+		CompileServer single = new CompileServer(0, 1, tokenDir);
+		single.requestTimeout = 200;
+		Thread t = new Thread(() -> {
+			try {
+				single.serve();
+			}
+			catch (Exception e) {
+				e.printStackTrace(System.err);
+			}
+		});
+		t.start();
+		try (Socket idle = new Socket(InetAddress.getLoopbackAddress(), single.getPort())) {
+			Files.write(dir.resolve("a.st"), "class A [ ]".getBytes());
+			// the only worker is busy with idle until it times out
+			assertTrue(err.toString(),
+			           CompileClient.request(single.getPort(), tokenDir, dir, Collections.singletonList("a.st"),
+			                                 new PrintStream(out, true), new PrintStream(err, true)));
+			assertEquals(-1, idle.getInputStream().read()); // closed by the server
+		}
+		finally {
+			single.shutdown();
+			t.join();
+		}
+	}
+
+	@Test public void testTokenDirOpenToOthersRefused() throws Exception {
+		Path open = Paths.get(tmpdir, "open-tokens");
+		new File(open.toString()).mkdirs();
+		if ( !Files.getFileStore(open).supportsFileAttributeView("posix") ) return;
+		Files.setPosixFilePermissions(open, PosixFilePermissions.fromString("rwxr-xr-x"));
+		try {
+			new CompileServer(0, 1, open);
+			fail("expected token directory to be refused");
+		}
+		catch (IOException ioe) {
+			assertEquals(open+" is open to other users; chmod 700 it to run an STC server", ioe.getMessage());
+		}
+	}
+
+	protected boolean request(String... args) throws Exception {
+		return CompileClient.request(server.getPort(), tokenDir, dir, Arrays.asList(args),
+		                             new PrintStream(out, true), new PrintStream(err, true));
+	}
+
+	/** Send lines as a request, without the token unless among them */
+	protected List<String> rawRequest(String... lines) throws Exception {
+		try (Socket s = new Socket(InetAddress.getLoopbackAddress(), server.getPort());
+		     BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+		     Writer w = new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8))
+		{
+			for (String line : lines) {
+				w.write(line+"\n");
+			}
+			w.write("\n");
+			w.flush();
+			List<String> response = new ArrayList<>();
+			String line;
+			while ( (line = in.readLine())!=null ) {
+				response.add(line);
+			}
+			return response;
+		}
+	}
+}
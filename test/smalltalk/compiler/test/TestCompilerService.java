@@ -0,0 +1,53 @@
+package smalltalk.compiler.test;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.junit.Test;
+import smalltalk.compiler.Compiler;
+
+import java.util.Collection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/** Parsers reused across compiles on a thread must behave like fresh ones */
+public class TestCompilerService extends BaseTest {
+	@Test public void testReusedParserSameTrees() throws Exception {
+		Collection<Object[]> samples = getAllTestDescriptors("CodeGen");
+		for (Object[] sample : samples) {
+			String code = (String)sample[1];
+			assertEquals((String)sample[0], parse(code, false), parse(code, true));
+		}
+	}
+
+	@Test public void testReusedParserAfterSyntaxError() throws Exception {
+		Compiler c = new Compiler();
+		c.reuseParsers = true;
+		assertNull(c.parseClasses(CharStreams.fromString("class T [ f [ ^1 + ] ]")));
+		String code = "class T [ f [ ^1 + 2 ] ]";
+		assertEquals(parse(code, false), parse(code, true));
+	}
+
+	@Test public void testReusedParserSameCode() throws Exception {
+		Collection<Object[]> samples = getAllTestDescriptors("CodeGen");
+		for (Object[] sample : samples) {
+			Compiler c = new Compiler();
+			c.reuseParsers = true;
+			assertEquals((String)sample[0], sample[2], compile(c, (String)sample[0], (String)sample[1]));
+		}
+	}
+
+	@Test public void testWarmUp() throws Exception {
+		Compiler.warmUp();
+		Compiler.warmUp(); // no-op
+		String code = "class T [ f [ ^1 + 2 ] ]";
+		assertEquals(parse(code, false), parse(code, true));
+	}
+
+	protected String parse(String code, boolean reuseParsers) {
+		Compiler c = new Compiler();
+		c.reuseParsers = reuseParsers;
+		ParserRuleContext tree = c.parseClasses(CharStreams.fromString(code));
+		return tree.toStringTree();
+	}
+}
@@ -0,0 +1,58 @@
+package smalltalk.compiler.test;
+
+import org.junit.Test;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.CompilerStats;
+import smalltalk.compiler.PhaseStats;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestCompilerStats extends BaseTest {
+	@Test public void testPhasesReportedInOrder() throws Exception {
+		Compiler c = new Compiler();
+		List<String> phases = new ArrayList<>();
+		c.addListener(stats -> phases.add(stats.phase));
+		c.compile("t.st", "class T [ f [ ^1 ] ]");
+		List<String> expecting = Arrays.asList(PhaseStats.PARSE, PhaseStats.DEFINE,
+		                                       PhaseStats.RESOLVE, PhaseStats.GENERATE);
+		assertEquals(expecting, phases);
+	}
+
+	@Test public void testCounts() throws Exception {
+		Compiler c = new Compiler();
+		CompilerStats stats = new CompilerStats();
+		c.addListener(stats);
+		c.compile("t.st",
+			"class T [\n" +
+			"    f [ ^1 ]\n" +
+			"    g [ ^[:x | x] value: 2 ]\n" +
+			"]\n" +
+			"T new f.\n");
+		// "class" "T" "[" "f" "[" "^" "1" "]" "g" "[" "^" "[" ":" "x" "|" "x" "]" "value:" "2" "]" "]"
+		// "T" "new" "f" "." EOF
+		assertEquals(26, stats.get(PhaseStats.PARSE).tokens);
+		CompilerStats.Totals gen = stats.get(PhaseStats.GENERATE);
+		assertEquals(2, gen.classes);   // T, MainClass
+		assertEquals(3, gen.methods);   // f, g, main
+		assertEquals(1, gen.blocks);
+		assertTrue(gen.bytecodeBytes>0);
+		assertTrue(gen.wallNanos>0);
+	}
+
+	@Test public void testParallelCodeGenReportsEachClass() throws Exception {
+		Compiler c = new Compiler();
+		c.parallelCodeGen = true;
+		CompilerStats stats = new CompilerStats();
+		c.addListener(stats);
+		c.compile("t.st", "class A [ f [ ^1 ] ]\nclass B [ g [ ^2 ] ]\n");
+		CompilerStats.Totals gen = stats.get(PhaseStats.GENERATE);
+		assertEquals(3, gen.calls); // A, B and the empty main program
+		assertEquals(2, gen.classes);
+		assertEquals(2, gen.methods);
+	}
+}
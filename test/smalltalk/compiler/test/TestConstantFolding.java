@@ -0,0 +1,18 @@
+package smalltalk.compiler.test;
+
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.Collection;
+
+@RunWith(Parameterized.class)
+public class TestConstantFolding extends BaseGoldenTest {
+	public TestConstantFolding(String fileName, String code, String expecting) {
+		super(fileName, code, expecting, c -> c.foldConstants = true);
+	}
+
+	@Parameterized.Parameters(name="{0}")
+	public static Collection<Object[]> getAllTestDescriptors() {
+		return getAllTestDescriptors("ConstantFolding");
+	}
+}
@@ -0,0 +1,73 @@
+package smalltalk.compiler.test;
+
+import org.junit.Before;
+import org.junit.Test;
+import smalltalk.compiler.BinaryObjectFile;
+import smalltalk.compiler.BinaryObjectReader;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.JsonObjectFile;
+import smalltalk.compiler.JsonObjectReader;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STField;
+import smalltalk.compiler.symbols.STSymbolTable;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class TestFieldLayout extends BaseTest {
+	// C is defined before its superclasses
+	public static final String input =
+		"class C : B [ |c| set [ a := c. c := b ] ]\n" +
+		"class A [ |a x| ]\n" +
+		"class B : A [ |b| ]\n";
+
+	@Before
+	public void setUp() {
+		new File(tmpdir).mkdirs();
+		eraseFiles(tmpdir);
+	}
+
+	@Test public void testOffsets() throws Exception {
+		STSymbolTable symtab = compile(input);
+		STClass A = resolve(symtab, "A");
+		STClass B = resolve(symtab, "B");
+		STClass C = resolve(symtab, "C");
+		assertEquals(0, A.getFieldOffset((STField)A.resolveField("a")));
+		assertEquals(1, A.getFieldOffset((STField)A.resolveField("x")));
+		assertEquals(2, B.getFieldOffset((STField)B.resolveField("b")));
+		assertEquals(3, C.getFieldOffset((STField)C.resolveField("c")));
+		assertEquals(2, ((STField)C.resolveField("b")).getOffset()); // inherited, at its offset in B
+		assertEquals(2, A.getInstanceSize());
+		assertEquals(3, B.getInstanceSize());
+		assertEquals(4, C.getInstanceSize());
+	}
+
+	@Test public void testLoadsAndStoresUseAbsoluteOffsets() throws Exception {
+		String code = resolve(compile(input), "C").resolveMethod("set").compiledBlock.toTestString();
+		assertTrue(code, code.contains("push_field     3"));
+		assertTrue(code, code.contains("store_field    0"));
+		assertTrue(code, code.contains("push_field     2"));
+		assertTrue(code, code.contains("store_field    3"));
+	}
+
+	@Test public void testInstanceSizeInObjectFiles() throws Exception {
+		STClass C = resolve(compile(input), "C");
+		Path f = Paths.get(tmpdir, "C.sto");
+		BinaryObjectFile.write(C, f);
+		assertEquals(4, BinaryObjectReader.map(f).instanceSize);
+		JsonObjectFile.write(C, f);
+		assertEquals(4, JsonObjectReader.read(f).instanceSize);
+	}
+
+	protected STSymbolTable compile(String code) {
+		return new Compiler().compile("T.st", code);
+	}
+
+	protected STClass resolve(STSymbolTable symtab, String name) {
+		return (STClass)symtab.GLOBALS.resolve(name);
+	}
+}
@@ -84,6 +84,37 @@ public class TestIDLookup extends BaseTest {
 		assertEquals(expectingRefs, getIDRefs(compiler));
 	}
 
+	@Test public void testAddresses() {
+		String input =
+		"class T [" +
+		"    |x|" +
+		"    foo: arg [ |y| [:z | x := y + arg + z. x] ]" +
+		"]";
+		CompilerWithHooks compiler = parseAndDefineSymbols(input);
+
+		String expectingLvalues = "x@-1,0";
+		assertEquals(expectingLvalues, getAddresses(compiler, "//lvalue"));
+
+		String expectingRefs = "y@1,1, arg@1,0, z@0,0, x@-1,0";
+		assertEquals(expectingRefs, getAddresses(compiler, "//id"));
+	}
+
+	/** name@depth,index for each node matching xpath, set by ResolveSymbols */
+	public String getAddresses(CompilerWithHooks compiler, String xpath) {
+		List<String> addresses = new ArrayList<>();
+		for (ParseTree node : XPath.findAll(compiler.getFileTree(), xpath, compiler.getParser())) {
+			if ( node instanceof SmalltalkParser.LvalueContext ) {
+				SmalltalkParser.LvalueContext lvalue = (SmalltalkParser.LvalueContext)node;
+				addresses.add(lvalue.getText()+"@"+lvalue.depth+","+lvalue.index);
+			}
+			else {
+				SmalltalkParser.IdContext id = (SmalltalkParser.IdContext)node;
+				addresses.add(id.getText()+"@"+id.depth+","+id.index);
+			}
+		}
+		return Utils.join(addresses, ", ");
+	}
+
 	public String getIDRefs(CompilerWithHooks compiler) {
 		ParseTree tree = compiler.getFileTree();
 		Parser parser = compiler.getParser();
@@ -0,0 +1,86 @@
+package smalltalk.compiler.test;
+
+import org.junit.Before;
+import org.junit.Test;
+import smalltalk.compiler.BinaryObjectReader;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.STC;
+import smalltalk.compiler.symbols.STMethodTable;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class TestIncrementalBuild extends BaseTest {
+	public static final String input =
+		"class A [ |x| foo [ ^x ] ]\n" +
+		"class B : A [ |y| bar [ ^x + y ] ]\n" +
+		"class C [ baz [ ^1 ] ]\n" +
+		"A new foo.\n";
+
+	protected Path src;
+
+	@Before
+	public void setUp() throws Exception {
+		new File(tmpdir).mkdirs();
+		eraseFiles(tmpdir);
+		src = Paths.get(tmpdir, "T.st");
+	}
+
+	@Test public void testFirstBuildCompilesEverything() throws Exception {
+		assertEquals("[A, B, C, MainClass]", build(input).toString());
+	}
+
+	@Test public void testNothingChanged() throws Exception {
+		build(input);
+		assertEquals("[]", build(input).toString());
+	}
+
+	@Test public void testMethodChange() throws Exception {
+		build(input);
+		assertEquals("[C]", build(input.replace("^1", "^2")).toString());
+	}
+
+	@Test public void testSuperclassFieldChangeRecompilesSubclass() throws Exception {
+		build(input);
+		assertEquals("[A, B]", build(input.replace("|x|", "|w x|")).toString());
+	}
+
+	@Test public void testSuperclassMethodChangeDoesNotRecompileSubclass() throws Exception {
+		build(input);
+		assertEquals("[A]", build(input.replace("^x ]", "^nil ]")).toString());
+	}
+
+	@Test public void testSuperclassMethodAddedRecompilesSubclassWithMethodTable() throws Exception {
+		String withObject = "class Object [ foo [^1] ]\nclass B : Object [ bar [^2] ]\n";
+		build(withObject);
+		assertEquals("[Object]", build(withObject.replace("^1", "^9")).toString()); // body only
+		assertEquals("[Object, B]", build(withObject.replace("[ foo", "[ zap [^3] foo")).toString());
+		STMethodTable table = BinaryObjectReader.map(Paths.get(tmpdir, "B.sto")).methodTable;
+		assertEquals("foo->Object[1]", table.lookup("foo").toString());
+		assertEquals("zap->Object[0]", table.lookup("zap").toString());
+	}
+
+	@Test public void testMissingObjectFileIsRebuilt() throws Exception {
+		build(input);
+		Files.delete(Paths.get(tmpdir, "B.sto"));
+		assertEquals("[B]", build(input).toString());
+	}
+
+	@Test public void testOptionChangeRebuildsEverything() throws Exception {
+		build(input);
+		Compiler c = new Compiler();
+		Files.write(src, input.getBytes());
+		List<String> changed = STC.compileIncremental(c, src.toString(), tmpdir, true);
+		assertEquals("[A, B, C, MainClass]", changed.toString());
+	}
+
+	protected List<String> build(String source) throws Exception {
+		Files.write(src, source.getBytes());
+		return STC.compileIncremental(new Compiler(), src.toString(), tmpdir, false);
+	}
+}
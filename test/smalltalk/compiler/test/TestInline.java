@@ -0,0 +1,18 @@
+package smalltalk.compiler.test;
+
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.Collection;
+
+@RunWith(Parameterized.class)
+public class TestInline extends BaseGoldenTest {
+	public TestInline(String fileName, String code, String expecting) {
+		super(fileName, code, expecting, c -> c.inlineControl = true);
+	}
+
+	@Parameterized.Parameters(name="{0}")
+	public static Collection<Object[]> getAllTestDescriptors() {
+		return getAllTestDescriptors("Inline");
+	}
+}
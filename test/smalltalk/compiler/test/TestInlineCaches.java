@@ -0,0 +1,18 @@
+package smalltalk.compiler.test;
+
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+
+import java.util.Collection;
+
+@RunWith(Parameterized.class)
+public class TestInlineCaches extends BaseGoldenTest {
+	public TestInlineCaches(String fileName, String code, String expecting) {
+		super(fileName, code, expecting, c -> c.inlineCaches = true);
+	}
+
+	@Parameterized.Parameters(name="{0}")
+	public static Collection<Object[]> getAllTestDescriptors() {
+		return getAllTestDescriptors("InlineCaches");
+	}
+}
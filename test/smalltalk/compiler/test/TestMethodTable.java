@@ -0,0 +1,87 @@
+package smalltalk.compiler.test;
+
+import org.junit.Before;
+import org.junit.Test;
+import smalltalk.compiler.BinaryObjectFile;
+import smalltalk.compiler.BinaryObjectReader;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.JsonObjectFile;
+import smalltalk.compiler.JsonObjectReader;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STMethodTable;
+import smalltalk.compiler.symbols.STSymbolTable;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+public class TestMethodTable extends BaseTest {
+	public static final String input =
+		"class Object [ hash [ ^1 ] printString [ ^'an Object' ] ]\n" +
+		"class A [ foo [ ^1 ] printString [ ^'an A' ] ]\n" +
+		"class B : A [ bar [ ^2 ] foo [ ^3 ] Aa [ ^4 ] BB [ ^5 ] ]\n";
+
+	@Before
+	public void setUp() {
+		new File(tmpdir).mkdirs();
+		eraseFiles(tmpdir);
+	}
+
+	@Test public void testInheritedAndOverridden() throws Exception {
+		STMethodTable table = STMethodTable.build(resolve(compile(input), "B"));
+		assertEquals("bar->B[0]", table.lookup("bar").toString());
+		assertEquals("foo->B[1]", table.lookup("foo").toString());
+		assertEquals("printString->A[1]", table.lookup("printString").toString());
+		assertEquals("hash->Object[0]", table.lookup("hash").toString());
+		assertNull(table.lookup("baz"));
+		assertEquals(6, table.size());
+		assertEquals(16, table.slots.length);
+	}
+
+	@Test public void testCollidingSelectors() throws Exception {
+		assertEquals("Aa".hashCode(), "BB".hashCode());
+		STMethodTable table = STMethodTable.build(resolve(compile(input), "B"));
+		assertEquals("Aa->B[2]", table.lookup("Aa").toString());
+		assertEquals("BB->B[3]", table.lookup("BB").toString());
+	}
+
+	@Test public void testNoTableWithoutWholeChain() throws Exception {
+		STSymbolTable symtab = compile("class A [ foo [ ^1 ] ]\n");
+		assertNull(STMethodTable.build(resolve(symtab, "A"))); // Object is missing
+	}
+
+	@Test public void testObjectFilesRoundTrip() throws Exception {
+		STClass B = resolve(compile(input), "B");
+		STMethodTable table = STMethodTable.build(B);
+		Path f = Paths.get(tmpdir, "B.sto");
+		BinaryObjectFile.write(B, f);
+		assertSameTable(table, BinaryObjectReader.map(f).methodTable);
+		JsonObjectFile.write(B, f);
+		assertSameTable(table, JsonObjectReader.read(f).methodTable);
+	}
+
+	@Test public void testNoTableInObjectFile() throws Exception {
+		STClass A = resolve(compile("class A [ foo [ ^1 ] ]\n"), "A");
+		Path f = Paths.get(tmpdir, "A.sto");
+		BinaryObjectFile.write(A, f);
+		assertNull(BinaryObjectReader.map(f).methodTable);
+		JsonObjectFile.write(A, f);
+		assertNull(JsonObjectReader.read(f).methodTable);
+	}
+
+	protected void assertSameTable(STMethodTable expected, STMethodTable actual) {
+		assertEquals(Arrays.toString(expected.slots), Arrays.toString(actual.slots));
+	}
+
+	protected STSymbolTable compile(String code) {
+		return new Compiler().compile("T.st", code);
+	}
+
+	protected STClass resolve(STSymbolTable symtab, String name) {
+		return (STClass)symtab.GLOBALS.resolve(name);
+	}
+}
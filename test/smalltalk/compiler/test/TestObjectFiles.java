@@ -0,0 +1,230 @@
+package smalltalk.compiler.test;
+
+import org.antlr.symtab.Symbol;
+import org.junit.Before;
+import org.junit.Test;
+import smalltalk.compiler.BinaryObjectFile;
+import smalltalk.compiler.BinaryObjectReader;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.JsonObjectFile;
+import smalltalk.compiler.JsonObjectReader;
+import smalltalk.compiler.STC;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STCompiledBlock;
+import smalltalk.compiler.symbols.STSymbolTable;
+
+import javax.json.Json;
+import javax.json.JsonObject;
+import javax.json.JsonObjectBuilder;
+import javax.json.JsonValue;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.Collection;
+import java.util.Map;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class TestObjectFiles extends BaseTest {
+	public static final String input =
+		"class T [\n" +
+		"    |x|\n" +
+		"    class bar <primitive:#T_BAR>\n" +
+		"    foo: y [ ^[:z | x + z] value: y ]\n" +
+		"]\n";
+
+	@Before
+	public void setUp() {
+		new File(tmpdir).mkdirs();
+		eraseFiles(tmpdir);
+	}
+
+	@Test public void testBinaryRoundTrip() throws Exception {
+		STSymbolTable symtab = new Compiler().compile("T.st", input);
+		STClass T = (STClass)symtab.GLOBALS.resolve("T");
+		Path f = Paths.get(tmpdir, "T.sto");
+		BinaryObjectFile.write(T, f);
+
+		BinaryObjectReader.ClassView v = BinaryObjectReader.map(f);
+		assertEquals("T", v.name);
+		assertEquals("Object", v.superClassName);
+		assertEquals(Arrays.toString(T.stringTable.toArray()), Arrays.toString(v.literals));
+		assertEquals("[x]", Arrays.toString(v.fields));
+		assertEquals("[bar, foo:]", v.methods.toString());
+
+		BinaryObjectReader.BlockView bar = v.methods.get(0);
+		assertTrue(bar.isClassMethod);
+		assertEquals("T_BAR", bar.primitiveName);
+		assertEquals(0, bar.getBytecode().length);
+
+		STCompiledBlock foo = T.resolveMethod("foo:").compiledBlock;
+		BinaryObjectReader.BlockView fooView = v.methods.get(1);
+		assertNull(fooView.primitiveName);
+		assertEquals("T>>foo:", fooView.qualifiedName);
+		assertEquals(1, fooView.nargs);
+		assertArrayEquals(foo.bytecode, fooView.getBytecode());
+		assertEquals(1, fooView.blocks.length);
+		assertEquals(1, fooView.blocks[0].nargs);
+		assertArrayEquals(foo.blocks[0].bytecode, fooView.blocks[0].getBytecode());
+	}
+
+	@Test public void testTooManyLiteralsRefused() throws Exception {
+		STClass T = (STClass)new Compiler().compile("T.st", input).GLOBALS.resolve("T");
+		while ( T.stringTable.size()<=BinaryObjectFile.MAX_SHORT ) {
+			T.stringTable.add("s"+T.stringTable.size());
+		}
+		assertBinaryRefused(T, "T: number of literals is 65536; an object file holds at most 65535");
+	}
+
+	@Test public void testLongStringRefused() throws Exception {
+		STClass T = (STClass)new Compiler().compile("T.st", input).GLOBALS.resolve("T");
+		char[] s = new char[BinaryObjectFile.MAX_SHORT+1];
+		Arrays.fill(s, 'x');
+		int i = T.stringTable.add(new String(s));
+		assertBinaryRefused(T, "T: length of literal "+i+" is 65536; an object file holds at most 65535");
+	}
+
+	protected void assertBinaryRefused(STClass cl, String expectedMessage) {
+		try {
+			BinaryObjectFile.write(cl, new ByteArrayOutputStream());
+			fail("expected "+expectedMessage);
+		}
+		catch (IOException ioe) {
+			assertEquals(expectedMessage, ioe.getMessage());
+		}
+	}
+
+	@Test public void testBinaryIsSmallerThanJSON() throws Exception {
+		STSymbolTable symtab = new Compiler().compile("T.st", input);
+		STClass T = (STClass)symtab.GLOBALS.resolve("T");
+		Path f = Paths.get(tmpdir, "T.sto");
+		BinaryObjectFile.write(T, f);
+		assertTrue(f.toFile().length() < T.serialize().toString().length());
+	}
+
+	@Test public void testObjectFilesDisassembleLikeTestString() throws Exception {
+		Collection<Object[]> samples = getAllTestDescriptors("CodeGen");
+		samples.add(new Object[] {"T.st", input});
+		for (Object[] sample : samples) {
+			STSymbolTable symtab = new Compiler().compile((String)sample[0], (String)sample[1]);
+			for (Symbol s : symtab.GLOBALS.getSymbols()) {
+				if ( !(s instanceof STClass) ) continue;
+				STClass cl = (STClass)s;
+				String expecting = cl.toTestString();
+				Path f = Paths.get(tmpdir, cl.getName()+".sto");
+				BinaryObjectFile.write(cl, f);
+				assertEquals((String)sample[0], expecting, STC.disassembleObjectFile(f));
+				JsonObjectFile.write(cl, f, false);
+				assertEquals((String)sample[0], expecting, STC.disassembleObjectFile(f));
+				JsonObjectFile.write(cl, f, true);
+				assertEquals((String)sample[0], expecting, STC.disassembleObjectFile(f));
+			}
+		}
+	}
+
+	@Test public void testBase64JSON() throws Exception {
+		STSymbolTable symtab = new Compiler().compile("T.st", input);
+		STClass T = (STClass)symtab.GLOBALS.resolve("T");
+		JsonObject json = T.serialize(true);
+		assertEquals(STClass.FORMAT_VERSION_BASE64, json.getInt("formatVersion"));
+		JsonObject foo = json.getJsonArray("methods").getJsonObject(1);
+		STCompiledBlock fooBlock = T.resolveMethod("foo:").compiledBlock;
+		assertArrayEquals(fooBlock.bytecode, Base64.getDecoder().decode(foo.getString("bytecode")));
+		assertEquals(STClass.FORMAT_VERSION_ARRAY, T.serialize().getInt("formatVersion"));
+		assertTrue(json.toString().length() < T.serialize().toString().length());
+	}
+
+	@Test public void testCallSitesSerialized() throws Exception {
+		Compiler c = new Compiler();
+		c.inlineCaches = true;
+		STClass T = (STClass)c.compile("T.st", input).GLOBALS.resolve("T");
+		STCompiledBlock foo = T.resolveMethod("foo:").compiledBlock;
+		assertEquals(1, foo.nCallSites); // value:
+		assertEquals(1, foo.blocks[0].nCallSites); // +
+		Path f = Paths.get(tmpdir, "T.sto");
+		BinaryObjectFile.write(T, f);
+		BinaryObjectReader.BlockView fooView = BinaryObjectReader.map(f).methods.get(1);
+		assertEquals(1, fooView.nCallSites);
+		assertEquals(1, fooView.blocks[0].nCallSites);
+		JsonObjectFile.write(T, f);
+		fooView = JsonObjectReader.read(f).methods.get(1);
+		assertEquals(1, fooView.nCallSites);
+		assertEquals(1, fooView.blocks[0].nCallSites);
+	}
+
+	@Test public void testMaxStackSerialized() throws Exception {
+		STClass T = (STClass)new Compiler().compile("T.st", input).GLOBALS.resolve("T");
+		STCompiledBlock foo = T.resolveMethod("foo:").compiledBlock;
+		assertEquals(2, foo.maxStack); // block, y
+		assertEquals(2, foo.blocks[0].maxStack); // x, z
+		assertEquals(0, T.resolveMethod("bar").compiledBlock.maxStack);
+		Path f = Paths.get(tmpdir, "T.sto");
+		BinaryObjectFile.write(T, f);
+		assertEquals(2, BinaryObjectReader.map(f).methods.get(1).maxStack);
+		JsonObjectFile.write(T, f);
+		assertEquals(2, JsonObjectReader.read(f).methods.get(1).blocks[0].maxStack);
+	}
+
+	@Test public void testJSONWithoutFormatVersion() throws Exception {
+		STSymbolTable symtab = new Compiler().compile("T.st", input);
+		STClass T = (STClass)symtab.GLOBALS.resolve("T");
+		JsonObjectBuilder old = Json.createObjectBuilder();
+		for (Map.Entry<String, JsonValue> e : T.serialize().entrySet()) {
+			if ( !e.getKey().equals("formatVersion") ) old.add(e.getKey(), e.getValue());
+		}
+		assertEquals(T.toTestString(), JsonObjectReader.read(old.build()).toTestString());
+	}
+
+	@Test public void testStreamedJSONSameAsTree() throws Exception {
+		Collection<Object[]> samples = getAllTestDescriptors("CodeGen");
+		samples.add(new Object[] {"T.st", input});
+		for (Object[] sample : samples) {
+			STSymbolTable symtab = new Compiler().compile((String)sample[0], (String)sample[1]);
+			for (Symbol s : symtab.GLOBALS.getSymbols()) {
+				if ( !(s instanceof STClass) ) continue;
+				STClass cl = (STClass)s;
+				Path f = Paths.get(tmpdir, cl.getName()+".sto");
+				JsonObjectFile.write(cl, f);
+				assertEquals((String)sample[0], cl.serialize().toString(),
+				             new String(Files.readAllBytes(f), StandardCharsets.UTF_8));
+				JsonObjectFile.write(cl, f, true);
+				assertEquals((String)sample[0], cl.serialize(true).toString(),
+				             new String(Files.readAllBytes(f), StandardCharsets.UTF_8));
+			}
+		}
+	}
+
+	@Test public void testTreeJSONHasEveryField() throws Exception {
+		// superclass, fields, a primitive, nested blocks and a method table
+		String code =
+			"class Object [ ]\n" +
+			"class S [ |a| m [ ^a ] ]\n" +
+			"class T : S [\n" +
+			"    |x|\n" +
+			"    class bar <primitive:#T_BAR>\n" +
+			"    foo: y [ ^[:z | x + z] value: y ]\n" +
+			"]\n";
+		STClass T = (STClass)new Compiler().compile("T.st", code).GLOBALS.resolve("T");
+		JsonObject json = T.serialize();
+		assertEquals("[formatVersion, name, superClassName, literals, fields, instanceSize, methods, methodTable]",
+		             json.keySet().toString());
+		JsonObject bar = json.getJsonArray("methods").getJsonObject(0);
+		assertEquals("[name, isClassMethod, qualifiedName, primitiveName, nargs, nlocals, nCallSites, maxStack, bytecode, blocks]",
+		             bar.keySet().toString());
+		JsonObject block = json.getJsonArray("methods").getJsonObject(1).getJsonArray("blocks").getJsonObject(0);
+		assertEquals("[name, isClassMethod, qualifiedName, nargs, nlocals, nCallSites, maxStack, bytecode, blocks]",
+		             block.keySet().toString());
+		assertEquals(T.toTestString(), JsonObjectReader.read(json).toTestString());
+		assertEquals(T.toTestString(), JsonObjectReader.read(T.serialize(true)).toTestString());
+	}
+}
@@ -0,0 +1,37 @@
+package smalltalk.compiler.test;
+
+import org.junit.Test;
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import smalltalk.compiler.Compiler;
+
+import java.util.Collection;
+
+import static org.junit.Assert.assertEquals;
+
+/** Parallel code generation must produce exactly the sequential output */
+@RunWith(Parameterized.class)
+public class TestParallelCodeGen extends BaseTest {
+	private String fileName;
+	private String code;
+	private String expecting;
+
+	public TestParallelCodeGen(String fileName, String code, String expecting) {
+		this.fileName = fileName;
+		this.code = code;
+		this.expecting = expecting;
+	}
+
+	@Test
+	public void testCode() throws Exception {
+		Compiler c = new Compiler();
+		c.parallelCodeGen = true;
+		String result = compile(c, fileName, code);
+		assertEquals(expecting, result);
+	}
+
+	@Parameterized.Parameters(name="{0}")
+	public static Collection<Object[]> getAllTestDescriptors() {
+		return getAllTestDescriptors("CodeGen");
+	}
+}
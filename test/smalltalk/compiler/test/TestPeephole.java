@@ -0,0 +1,39 @@
+package smalltalk.compiler.test;
+
+import org.junit.runner.RunWith;
+import org.junit.runners.Parameterized;
+import smalltalk.compiler.Compiler;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.Consumer;
+
+@RunWith(Parameterized.class)
+public class TestPeephole extends BaseGoldenTest {
+	/** Options, besides optimize, for each sample in Peephole */
+	public static final Map<String, Consumer<Compiler>> options = new HashMap<>();
+	static {
+		options.put("DeadStatementAfterReturn.st", c -> { });
+		options.put("InlineBranches.st", c -> c.inlineControl = true);
+		options.put("ReturnThenFailsafe.st", c -> { });
+		options.put("SideEffectsKept.st", c -> { });
+		options.put("UnusedPushes.st", c -> { });
+		options.put("UnusedPushesDbg.st", c -> c.genDbg = true);
+	}
+
+	public TestPeephole(String fileName, String code, String expecting) {
+		super(fileName, code, expecting, c -> {
+			if ( !options.containsKey(fileName) ) {
+				throw new IllegalArgumentException("no options given for "+fileName);
+			}
+			c.optimize = true;
+			options.get(fileName).accept(c);
+		});
+	}
+
+	@Parameterized.Parameters(name="{0}")
+	public static Collection<Object[]> getAllTestDescriptors() {
+		return getAllTestDescriptors("Peephole");
+	}
+}
@@ -0,0 +1,134 @@
+package smalltalk.compiler.test;
+
+import org.antlr.symtab.StringTable;
+import org.junit.Before;
+import org.junit.Test;
+import smalltalk.compiler.BatchCompiler;
+import smalltalk.compiler.Bytecode;
+import smalltalk.compiler.Compiler;
+import smalltalk.compiler.LiteralPoolFile;
+import smalltalk.compiler.STC;
+import smalltalk.compiler.symbols.STClass;
+import smalltalk.compiler.symbols.STSymbolTable;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+public class TestSharedLiterals extends BaseTest {
+	public static final String input =
+		"class A [ foo [ ^self printString ] ]\n" +
+		"class B [ bar: x [ ^x printString, 'hi' ] ]\n";
+
+	protected Path dir;
+
+	@Before
+	public void setUp() throws Exception {
+		dir = Paths.get(tmpdir, "shared");
+		new File(dir.toString()).mkdirs();
+		eraseFiles(dir.toString());
+	}
+
+	@Test public void testClassesShareOnePool() throws Exception {
+		STSymbolTable symtab = compile(input, false);
+		STClass A = (STClass)symtab.GLOBALS.resolve("A");
+		STClass B = (STClass)symtab.GLOBALS.resolve("B");
+		assertTrue(A.hasSharedLiterals());
+		assertSame(symtab.literals, A.stringTable);
+		assertSame(symtab.literals, B.stringTable);
+		assertEquals("[printString, hi, ,]", Arrays.toString(symtab.literals.toArray()));
+	}
+
+	@Test public void testParallelCodeGenIgnored() throws Exception {
+		STSymbolTable sequential = compile(input, false);
+		STSymbolTable parallel = compile(input, true);
+		assertArrayEquals(sequential.literals.toArray(), parallel.literals.toArray());
+		for (String name : new String[] {"A", "B", "MainClass"}) {
+			STClass s = (STClass)sequential.GLOBALS.resolve(name);
+			if ( s==null ) continue;
+			assertEquals(s.toTestString(), ((STClass)parallel.GLOBALS.resolve(name)).toTestString());
+		}
+	}
+
+	@Test public void testObjectFilesReferToPool() throws Exception {
+		for (boolean json : new boolean[] {false, true}) {
+			eraseFiles(dir.toString());
+			STSymbolTable symtab = compile(input, false);
+			STC.writeObjectFiles(dir.toString(), "t.st", symtab, json, false, null);
+			assertTrue(Files.exists(dir.resolve(LiteralPoolFile.FILE_NAME)));
+			assertArrayEquals(symtab.literals.toArray(), LiteralPoolFile.read(dir.resolve(LiteralPoolFile.FILE_NAME)));
+			for (String name : new String[] {"A", "B"}) {
+				STClass cl = (STClass)symtab.GLOBALS.resolve(name);
+				assertEquals(cl.toTestString(), STC.disassembleObjectFile(dir.resolve(name+".sto")));
+			}
+		}
+	}
+
+	@Test public void testBatchSharesPoolAcrossFiles() throws Exception {
+		Path a = dir.resolve("a.st");
+		Path b = dir.resolve("b.st");
+		Files.write(a, "class A [ foo [ ^self printString ] ]".getBytes());
+		Files.write(b, "class B : A [ bar [ ^self foo printString ] ]".getBytes());
+		BatchCompiler batch = new BatchCompiler(2, symtab -> {
+			Compiler c = new Compiler(symtab);
+			c.sharedLiterals = true;
+			return c;
+		});
+		assertTrue(batch.errors.toString(), batch.compile(Arrays.asList(a, b)));
+		assertEquals("[printString, foo]", Arrays.toString(batch.symtab.literals.toArray()));
+		batch.writeObjectFiles(null, false);
+		assertArrayEquals(batch.symtab.literals.toArray(), LiteralPoolFile.read(dir.resolve(LiteralPoolFile.FILE_NAME)));
+	}
+
+	@Test public void testPoolOverflowIsCompileError() throws Exception {
+		STSymbolTable symtab = new STSymbolTable();
+		for (int i = 0; i<Bytecode.MAX_SHORT_OPERAND; i++) { // room for one more
+			symtab.literals.add("s"+i);
+		}
+		Compiler c = new Compiler(symtab);
+		c.sharedLiterals = true;
+		c.compile("t.st", input);
+		assertEquals("[more than 65536 literals in the shared literal pool; literal operands are 16 bits]",
+		             c.errors.toString());
+	}
+
+	@Test public void testPoolFileOverflowRefused() throws Exception {
+		StringTable pool = new StringTable();
+		for (int i = 0; i<=Bytecode.MAX_SHORT_OPERAND; i++) {
+			pool.add("s"+i);
+		}
+		try {
+			LiteralPoolFile.write(pool, dir.resolve(LiteralPoolFile.FILE_NAME), false);
+			assertFalse("expected an error", true);
+		}
+		catch (IOException ioe) {
+			assertEquals("literals.stl: number of literals is 65536; an object file holds at most 65535", ioe.getMessage());
+		}
+	}
+
+	@Test public void testNotWithIncremental() throws Exception {
+		try {
+			STC.Options.parse(new String[] {"-shared-literals", "-incremental", "t.st"});
+			assertFalse("expected an error", true);
+		}
+		catch (IllegalArgumentException iae) {
+			assertEquals("-shared-literals can't be used with -incremental", iae.getMessage());
+		}
+	}
+
+	protected STSymbolTable compile(String code, boolean parallel) {
+		Compiler c = new Compiler();
+		c.sharedLiterals = true;
+		c.parallelCodeGen = parallel;
+		return c.compile("t.st", code);
+	}
+}
@@ -0,0 +1,41 @@
+package smalltalk.compiler.test;
+
+import org.antlr.v4.runtime.CharStreams;
+import org.antlr.v4.runtime.ParserRuleContext;
+import org.antlr.v4.runtime.misc.Utils;
+import org.junit.Test;
+import smalltalk.compiler.Compiler;
+
+import java.util.Collection;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+/** SLL-first parsing must build the same trees as full LL */
+public class TestTwoStageParse extends BaseTest {
+	@Test public void testSameTreesAsLL() throws Exception {
+		Collection<Object[]> samples = getAllTestDescriptors("CodeGen");
+		samples.addAll(getAllTestDescriptors("Inline"));
+		for (Object[] sample : samples) {
+			String code = (String)sample[1];
+			assertEquals((String)sample[0], parse(code, true), parse(code, false));
+		}
+	}
+
+	@Test public void testImage() throws Exception {
+		String image = new String(Utils.readFile(getClass().getClassLoader().getResource("image.st").getFile()));
+		assertEquals(parse(image, true), parse(image, false));
+	}
+
+	@Test public void testSyntaxErrorStillReported() throws Exception {
+		Compiler c = new Compiler();
+		assertNull(c.parseClasses(CharStreams.fromString("class T [ f [ ^1 + ] ]")));
+	}
+
+	protected String parse(String code, boolean forceLL) {
+		Compiler c = new Compiler();
+		c.forceLL = forceLL;
+		ParserRuleContext tree = c.parseClasses(CharStreams.fromString(code));
+		return tree.toStringTree();
+	}
+}